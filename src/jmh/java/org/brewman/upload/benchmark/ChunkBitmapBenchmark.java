@@ -0,0 +1,48 @@
+package org.brewman.upload.benchmark;
+
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The chunk bitmap work behind the received-chunks report, from a 64 MB file in 64 KB chunks to a 4 GB file in 64 KB
+ * chunks. Every other chunk is received so the ranges are as fragmented as they get. Whether an upload is complete
+ * comes from the received_chunks counter, not the bitmap, so there is nothing to measure there.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@State(Scope.Thread)
+public class ChunkBitmapBenchmark {
+
+    @Param({"1024", "65536"})
+    public int totalChunks;
+
+    private int[] bits;
+
+    @Setup(Level.Trial)
+    public void setupBitmap() {
+        bits = ChunkBitmap.create(totalChunks);
+        for (int n = 1; n <= totalChunks; n += 2) {
+            ChunkBitmap.set(bits, n);
+        }
+    }
+
+    @Benchmark
+    public List<int[]> ranges() {
+        return ChunkBitmap.ranges(bits, totalChunks);
+    }
+}
@@ -0,0 +1,47 @@
+package org.brewman.upload.benchmark;
+
+import org.brewman.upload.domain.Upload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning every chunk of an upload into the finished file: mergeChunks for chunked uploads, a rename for
+ * positional ones. Each invocation needs a freshly written upload, which is not counted.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ChunkMergeBenchmark {
+
+    public static class MergeState extends StorageState {
+
+        Upload upload;
+
+        @Setup(Level.Invocation)
+        public void writeUpload() throws IOException {
+            upload = createUpload();
+            writeAllChunks(upload);
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteUpload() throws IOException {
+            storageEngine.delete(upload.getId());
+        }
+    }
+
+    @Benchmark
+    public void commit(MergeState state) throws IOException {
+        state.storageEngine.commit(state.upload);
+    }
+}
@@ -0,0 +1,56 @@
+package org.brewman.upload.benchmark;
+
+import org.brewman.upload.domain.Upload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a chunk back, as the running digest does right after the chunk is written.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ChunkReadBenchmark {
+
+    public static class ReadState extends StorageState {
+
+        Upload upload;
+
+        ByteBuffer buffer;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setupUpload() throws IOException {
+            upload = createUpload();
+            writeAllChunks(upload);
+            buffer = ByteBuffer.allocateDirect(64 * 1024);
+        }
+    }
+
+    @Benchmark
+    public long readChunk(ReadState state) throws IOException {
+        state.next = state.next % state.getTotalChunks() + 1;
+        long read = 0;
+        try (ReadableByteChannel in = state.storageEngine.readChunk(state.upload, state.next)) {
+            int n;
+            while ((n = in.read(state.buffer)) >= 0) {
+                read += n;
+                state.buffer.clear();
+            }
+        }
+        return read;
+    }
+}
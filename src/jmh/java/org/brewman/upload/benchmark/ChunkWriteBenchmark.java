@@ -0,0 +1,80 @@
+package org.brewman.upload.benchmark;
+
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.storage.ChunkWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a single chunk, the disk half of saveChunkToDisk. Chunks of one upload are written round and round, so
+ * after the first pass every write replaces a chunk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ChunkWriteBenchmark {
+
+    public static class WriteState extends StorageState {
+
+        Upload upload;
+
+        byte[] requestBody;
+
+        int next;
+
+        @Setup(Level.Trial)
+        public void setupUpload() throws IOException {
+            upload = createUpload();
+            ByteBuffer chunk = getChunkData(1);
+            requestBody = new byte[chunk.remaining()];
+            chunk.get(requestBody);
+        }
+
+        int nextChunk() {
+            next = next % getTotalChunks() + 1;
+            return next;
+        }
+    }
+
+    /**
+     * The chunk is already in memory, as with the non-blocking servlet.
+     */
+    @Benchmark
+    public void writeBuffer(WriteState state) throws IOException {
+        state.writeChunk(state.upload, state.nextChunk());
+    }
+
+    /**
+     * The chunk is streamed from the request body, as with the multipart and raw PUT endpoints.
+     */
+    @Benchmark
+    public void transferFromStream(WriteState state) throws IOException {
+        int n = state.nextChunk();
+        long size = state.getChunkLength(n);
+        ReadableByteChannel src = Channels.newChannel(new ByteArrayInputStream(state.requestBody, 0, (int) size));
+        try (ChunkWriter out = state.storageEngine.openChunk(state.upload, n)) {
+            long written = 0;
+            while (written < size) {
+                long transferred = out.transferFrom(src, size - written);
+                if (transferred <= 0) {
+                    throw new IOException("chunk truncated");
+                }
+                written += transferred;
+            }
+        }
+    }
+}
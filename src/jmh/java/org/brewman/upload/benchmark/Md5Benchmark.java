@@ -0,0 +1,48 @@
+package org.brewman.upload.benchmark;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.brewman.upload.domain.Upload;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The MD5SUM of a finished file, read back the way calculateMd5Sum does when the running digest couldn't be
+ * finished. The chunk size makes no difference here so only one is used.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class Md5Benchmark {
+
+    public static class Md5State extends StorageState {
+
+        Upload upload;
+
+        @Setup(Level.Trial)
+        public void setupUpload() throws IOException {
+            upload = createUpload();
+            writeAllChunks(upload);
+            storageEngine.commit(upload);
+        }
+    }
+
+    @Benchmark
+    public String calculateMd5Sum(Md5State state) throws IOException {
+        try (InputStream in = Channels.newInputStream(
+            state.storageEngine.readRange(state.upload.getId(), 0, state.fileSize))) {
+            return DigestUtils.md5Hex(in);
+        }
+    }
+}
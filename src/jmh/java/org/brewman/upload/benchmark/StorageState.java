@@ -0,0 +1,122 @@
+package org.brewman.upload.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.brewman.upload.domain.StorageMode;
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.storage.ChunkWriter;
+import org.brewman.upload.storage.LocalFileStorageEngine;
+import org.brewman.upload.storage.MappedFileStorageEngine;
+import org.brewman.upload.storage.StorageEngine;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A storage engine in a temporary directory, with the engine, storage mode, chunk size and file size as
+ * benchmark parameters.
+ */
+@State(Scope.Thread)
+public class StorageState {
+
+    @Param({"local", "mapped"})
+    public String engine;
+
+    @Param({"CHUNKED", "POSITIONAL"})
+    public StorageMode storageMode;
+
+    @Param({"65536", "1048576", "16777216"})
+    public int chunkSize;
+
+    @Param({"268435456"})
+    public long fileSize;
+
+    public StorageEngine storageEngine;
+
+    private Path baseLocation;
+
+    private ByteBuffer data;
+
+    @Setup(Level.Trial)
+    public void setupStorage() throws IOException {
+        baseLocation = Files.createTempDirectory("upload-jmh");
+
+        switch (engine) {
+            case "local":
+                storageEngine = new LocalFileStorageEngine(baseLocation.toString(), 4, Collections.emptyMap());
+                break;
+            case "mapped":
+                storageEngine = new MappedFileStorageEngine(baseLocation.toString(), 4, Collections.emptyMap());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine: " + engine);
+        }
+        storageEngine.init();
+
+        byte[] bytes = new byte[chunkSize];
+        new Random(42).nextBytes(bytes);
+        data = ByteBuffer.allocateDirect(chunkSize);
+        data.put(bytes).flip();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownStorage() throws IOException {
+        FileUtils.deleteDirectory(baseLocation.toFile());
+    }
+
+    public int getTotalChunks() {
+        return (int) ((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * The length of a chunk, every one is the chunk size but the last.
+     */
+    public int getChunkLength(int flowChunkNumber) {
+        return (int) Math.min(chunkSize, fileSize - (long) (flowChunkNumber - 1) * chunkSize);
+    }
+
+    /**
+     * The bytes of a chunk, ready to be written.
+     */
+    public ByteBuffer getChunkData(int flowChunkNumber) {
+        ByteBuffer src = data.duplicate();
+        src.limit(getChunkLength(flowChunkNumber));
+        return src;
+    }
+
+    /**
+     * Start a new upload in the storage, as testChunk does for the first chunk.
+     */
+    public Upload createUpload() throws IOException {
+        Upload upload = new Upload();
+        upload.setId(UUID.randomUUID().toString());
+        upload.setStorageMode(storageMode);
+        upload.setChunkSize(chunkSize);
+        upload.setTotalChunks(getTotalChunks());
+        upload.setTotalSize(fileSize);
+        storageEngine.create(upload);
+        return upload;
+    }
+
+    public void writeChunk(Upload upload, int flowChunkNumber) throws IOException {
+        try (ChunkWriter out = storageEngine.openChunk(upload, flowChunkNumber)) {
+            out.write(getChunkData(flowChunkNumber));
+        }
+    }
+
+    public void writeAllChunks(Upload upload) throws IOException {
+        for (int n = 1; n <= getTotalChunks(); n++) {
+            writeChunk(upload, n);
+        }
+    }
+}
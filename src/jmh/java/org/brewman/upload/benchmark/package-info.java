@@ -0,0 +1,13 @@
+/**
+ * JMH benchmarks for the upload storage hot paths. They go straight through
+ * the StorageEngine, so no Mongo is needed, and keep their files in a
+ * temporary directory.
+ *
+ * <p>
+ * Run with {@code mvn -Pjmh test-compile exec:exec}. The results end up in
+ * target/jmh-results.json and target/jmh-results.txt. JMH options go in
+ * jmh.args, e.g. {@code -Djmh.args="-p fileSize=4294967296 ChunkMerge"} for
+ * merges of 4 GB files.
+ * </p>
+ */
+package org.brewman.upload.benchmark;
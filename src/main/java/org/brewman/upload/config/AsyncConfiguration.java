@@ -1,6 +1,7 @@
 package org.brewman.upload.config;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import org.brewman.upload.async.ExceptionHandlingAsyncTaskExecutor;
 import org.slf4j.Logger;
@@ -13,6 +14,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.env.Environment;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.scheduling.annotation.AsyncConfigurer;
 import org.springframework.scheduling.annotation.EnableAsync;
 import org.springframework.scheduling.annotation.EnableScheduling;
@@ -50,6 +52,26 @@ public class AsyncConfiguration implements AsyncConfigurer, EnvironmentAware {
         return new ExceptionHandlingAsyncTaskExecutor(executor);
     }
 
+    /**
+     * A small bounded pool for finishing uploads off the request thread. When
+     * it is saturated the request thread does the work itself, which is how it
+     * was done before, rather than queueing without limit.
+     */
+    @Bean(name = "uploadFinalizationExecutor")
+    public AsyncTaskExecutor uploadFinalizationExecutor() {
+        log.debug("Creating Upload Finalization Task Executor");
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(propertyResolver.getProperty(
+                "finalization.corePoolSize", Integer.class, 2));
+        executor.setMaxPoolSize(propertyResolver.getProperty(
+                "finalization.maxPoolSize", Integer.class, 4));
+        executor.setQueueCapacity(propertyResolver.getProperty(
+                "finalization.queueCapacity", Integer.class, 100));
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setThreadNamePrefix("upload-example-Finalizer-");
+        return new ExceptionHandlingAsyncTaskExecutor(executor);
+    }
+
     @Override
     public AsyncUncaughtExceptionHandler getAsyncUncaughtExceptionHandler() {
         return new SimpleAsyncUncaughtExceptionHandler();
@@ -9,6 +9,8 @@ import com.codahale.metrics.jvm.*;
 import com.ryantenney.metrics.spring.config.annotation.EnableMetrics;
 import com.ryantenney.metrics.spring.config.annotation.MetricsConfigurerAdapter;
 import fr.ippon.spark.metrics.SparkReporter;
+import org.brewman.upload.service.UploadMetrics;
+import org.brewman.upload.web.servlet.TimedMultipartResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
@@ -18,6 +20,7 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.core.env.Environment;
+import org.springframework.web.multipart.MultipartResolver;
 
 import javax.annotation.PostConstruct;
 import javax.inject.Inject;
@@ -71,6 +74,22 @@ public class MetricsConfiguration extends MetricsConfigurerAdapter implements En
         return healthCheckRegistry;
     }
 
+    /**
+     * Explicit metrics for the upload pipeline, see UploadMetrics.
+     */
+    @Bean
+    public UploadMetrics uploadMetrics() {
+        return new UploadMetrics(metricRegistry);
+    }
+
+    /**
+     * Multipart parsing timed as part of the upload pipeline.
+     */
+    @Bean
+    public MultipartResolver multipartResolver() {
+        return new TimedMultipartResolver(uploadMetrics());
+    }
+
     @PostConstruct
     public void init() {
         log.debug("Registering JVM gauges");
@@ -1,32 +1,176 @@
 package org.brewman.upload.config;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import org.brewman.upload.domain.StorageMode;
 import org.brewman.upload.service.UploadService;
 import org.brewman.upload.service.impl.UploadServiceImpl;
+import org.brewman.upload.storage.LocalFileStorageEngine;
+import org.brewman.upload.storage.MappedFileStorageEngine;
+import org.brewman.upload.storage.StorageEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.bind.RelaxedPropertyResolver;
+import org.springframework.context.EnvironmentAware;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 
 /**
- * Create the UploadService and hard code where it will store the uploaded
- * files.
+ * Create the UploadService and the storage engine it keeps the uploaded files
+ * in.
  * 
  * @author danielshiplett
  */
 @Configuration
-public class UploadServiceConfiguration {
+public class UploadServiceConfiguration implements EnvironmentAware {
 
     private static final Logger LOG = LoggerFactory
             .getLogger(UploadServiceConfiguration.class);
 
+    private RelaxedPropertyResolver propertyResolver;
+
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.propertyResolver = new RelaxedPropertyResolver(environment,
+                "upload.");
+    }
+
     @Bean(name = { "uploadService" })
     public UploadService localStorageFileUploadServiceImpl() {
-        String baseLocation = "src/main/webapp/assets/uploads";
+        /*
+         * Where the files are kept and how. "local" writes through file
+         * channels, "mapped" writes through memory mappings.
+         */
+        String baseLocation = propertyResolver.getProperty("storage.location",
+                "src/main/webapp/assets/uploads");
+        String engine = propertyResolver.getProperty("storage.engine", "local");
+
+        /*
+         * New uploads are refused unless this much would still be free once
+         * every upload in progress is stored.
+         */
+        long minFreeMegabytes = propertyResolver.getProperty(
+                "storage.minFreeMegabytes", Long.class, 0L);
+
+        /*
+         * Move uploads left in the old flat layout into the ab/cd/ fan-out in
+         * the background.
+         */
+        boolean migrateFlatLayout = propertyResolver.getProperty(
+                "storage.migrateFlatLayout", Boolean.class, false);
+
+        /*
+         * Stream chunks straight from the request into the chunk file unless
+         * told otherwise. The buffered path is only kept around so the two can
+         * be benchmarked against each other.
+         */
+        boolean streamingWrites = propertyResolver.getProperty(
+                "streamingWrites", Boolean.class, true);
+
+        /*
+         * Chunked keeps a file per chunk and merges them at the end.
+         * Positional writes every chunk straight into a preallocated file.
+         */
+        StorageMode storageMode = StorageMode.valueOf(propertyResolver
+                .getProperty("storageMode", "chunked").toUpperCase());
+
+        /*
+         * Uploads are serialized per flowIdentifier on a fixed set of locks.
+         */
+        int lockStripes = propertyResolver.getProperty("lockStripes",
+                Integer.class, 256);
+
+        /*
+         * How many chunks are copied at once when merging, with overrides per
+         * volume (by FileStore name) under upload.merge.volumes.
+         */
+        int mergeParallelism = propertyResolver.getProperty(
+                "merge.parallelism", Integer.class, 4);
+        Map<String, Integer> volumeMergeParallelism = new HashMap<>();
+
+        for (Map.Entry<String, Object> volume : propertyResolver
+                .getSubProperties("merge.volumes.").entrySet()) {
+            volumeMergeParallelism.put(volume.getKey(),
+                    Integer.valueOf(volume.getValue().toString()));
+        }
+
+        /*
+         * In-process cache of the state of uploads in flight. Kept short, an
+         * upload another node moves on is only seen here once it expires.
+         */
+        long cacheSize = propertyResolver.getProperty("cache.maximumSize",
+                Long.class, 10000L);
+        long cacheTtl = propertyResolver.getProperty(
+                "cache.expireAfterWriteSeconds", Long.class, 30L);
+
+        /*
+         * Uploads left unfinished for longer than this are removed along with
+         * their chunks. 0 keeps them forever.
+         */
+        int reaperMaxAge = propertyResolver.getProperty("reaper.maxAgeMinutes",
+                Integer.class, 1440);
+        int reaperConcurrency = propertyResolver.getProperty(
+                "reaper.concurrency", Integer.class, 2);
+        int reaperBatchSize = propertyResolver.getProperty("reaper.batchSize",
+                Integer.class, 500);
+
+        /*
+         * Uploads FINALIZING for longer than this are finalized again, they
+         * were most likely left behind by a node that went down. 0 leaves
+         * them be.
+         */
+        int finalizationTimeout = propertyResolver.getProperty(
+                "finalization.timeoutMinutes", Integer.class, 60);
+
+        StorageEngine storageEngine;
+
+        switch (engine.toLowerCase()) {
+        case "local":
+            storageEngine = new LocalFileStorageEngine(baseLocation,
+                    mergeParallelism, volumeMergeParallelism)
+                    .withFlatLayoutMigration(migrateFlatLayout);
+            break;
+        case "mapped":
+            storageEngine = new MappedFileStorageEngine(baseLocation,
+                    mergeParallelism, volumeMergeParallelism)
+                    .withFlatLayoutMigration(migrateFlatLayout);
+            break;
+        default:
+            throw new IllegalArgumentException(String.format(
+                    "Unknown upload.storage.engine: %s", engine));
+        }
+
+        /*
+         * Keep one copy of each distinct content and let clients that send
+         * the MD5SUM of known content skip the upload. Off by default, see
+         * UploadServiceImpl#withDeduplication for why.
+         */
+        boolean deduplication = propertyResolver.getProperty("deduplication",
+                Boolean.class, false);
 
+        LOG.info("Upload Service Storage Engine: {}", engine);
         LOG.info("Upload Service Storage Location: \"{}\"", baseLocation);
+        LOG.info("Upload Service Min Free Space: {} MB", minFreeMegabytes);
+        LOG.info("Upload Service Streaming Writes: {}", streamingWrites);
+        LOG.info("Upload Service Storage Mode: {}", storageMode);
+        LOG.info("Upload Service Merge Parallelism: {} {}", mergeParallelism,
+                volumeMergeParallelism);
+        LOG.info("Upload Service Reaper Max Age: {} minutes", reaperMaxAge);
+        LOG.info("Upload Service Finalization Timeout: {} minutes",
+                finalizationTimeout);
 
         UploadService rtn = new UploadServiceImpl()
-                .withBaseLocation(baseLocation);
+                .withStorageEngine(storageEngine)
+                .withStreamingWrites(streamingWrites)
+                .withStorageMode(storageMode)
+                .withLockStripes(lockStripes)
+                .withMinFreeSpace(minFreeMegabytes * 1024 * 1024)
+                .withDeduplication(deduplication)
+                .withReaper(reaperMaxAge, reaperConcurrency, reaperBatchSize)
+                .withFinalizationTimeout(finalizationTimeout)
+                .withStateCache(cacheSize, cacheTtl);
 
         return rtn;
     }
@@ -5,7 +5,9 @@ import com.codahale.metrics.servlet.InstrumentedFilter;
 import com.codahale.metrics.servlets.MetricsServlet;
 import org.brewman.upload.web.filter.CachingHttpHeadersFilter;
 import org.brewman.upload.web.filter.StaticResourcesProductionFilter;
+import org.brewman.upload.web.filter.UploadAdmissionFilter;
 import org.brewman.upload.web.filter.gzip.GZipServletFilter;
+import org.brewman.upload.web.servlet.AsyncChunkUploadServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -46,6 +48,8 @@ public class WebConfigurer implements ServletContextInitializer, EmbeddedServlet
         if (!env.acceptsProfiles(Constants.SPRING_PROFILE_FAST)) {
             initMetrics(servletContext, disps);
         }
+        initUploadAdmissionFilter(servletContext);
+        initAsyncChunkUploadServlet(servletContext);
         if (env.acceptsProfiles(Constants.SPRING_PROFILE_PRODUCTION)) {
             initCachingHttpHeadersFilter(servletContext, disps);
             initStaticResourcesProductionFilter(servletContext, disps);
@@ -67,6 +71,37 @@ public class WebConfigurer implements ServletContextInitializer, EmbeddedServlet
         container.setMimeMappings(mappings);
     }
 
+    /**
+     * Initializes the upload admission Filter, in front of every way a chunk can be sent.
+     */
+    private void initUploadAdmissionFilter(ServletContext servletContext) {
+        log.debug("Registering Upload Admission Filter");
+        int maxConcurrentWrites = env.getProperty("upload.admission.maxConcurrentWrites", Integer.class, 64);
+        long maxInFlightBytes = env.getProperty("upload.admission.maxInFlightMegabytes", Long.class, 512L) * 1024 * 1024;
+        long retryAfterSeconds = env.getProperty("upload.admission.retryAfterSeconds", Long.class, 1L);
+        FilterRegistration.Dynamic uploadAdmissionFilter =
+                servletContext.addFilter("uploadAdmissionFilter",
+                        new UploadAdmissionFilter(maxConcurrentWrites, maxInFlightBytes, retryAfterSeconds, metricRegistry));
+
+        // Only the original request, the async servlet never dispatches again
+        uploadAdmissionFilter.addMappingForUrlPatterns(EnumSet.of(DispatcherType.REQUEST), true,
+                "/api/uploader", "/api/uploader/*");
+        uploadAdmissionFilter.setAsyncSupported(true);
+    }
+
+    /**
+     * Initializes the non-blocking chunk upload Servlet.
+     */
+    private void initAsyncChunkUploadServlet(ServletContext servletContext) {
+        log.debug("Registering Async Chunk Upload Servlet");
+        long timeout = env.getProperty("upload.async.timeout", Long.class, 60000L);
+        ServletRegistration.Dynamic asyncChunkUploadServlet =
+                servletContext.addServlet("asyncChunkUploadServlet", new AsyncChunkUploadServlet(timeout));
+
+        asyncChunkUploadServlet.addMapping("/api/uploader/stream/*");
+        asyncChunkUploadServlet.setAsyncSupported(true);
+    }
+
     /**
      * Initializes the GZip filter.
      */
@@ -74,6 +109,8 @@ public class WebConfigurer implements ServletContextInitializer, EmbeddedServlet
         log.debug("Registering GZip Filter");
         FilterRegistration.Dynamic compressingFilter = servletContext.addFilter("gzipFilter", new GZipServletFilter());
         Map<String, String> parameters = new HashMap<>();
+        // Downloads are already compressed or not worth it, exports compress themselves, and neither may be buffered whole
+        parameters.put(GZipServletFilter.EXCLUDED_PATHS, "/api/uploads/([^/]+/content|export)");
         compressingFilter.setInitParameters(parameters);
         compressingFilter.addMappingForUrlPatterns(disps, true, "*.css");
         compressingFilter.addMappingForUrlPatterns(disps, true, "*.json");
@@ -0,0 +1,21 @@
+package org.brewman.upload.domain;
+
+/**
+ * How the chunks of an Upload are laid out on disk while it is in progress.
+ * 
+ * @author danielshiplett
+ */
+public enum StorageMode {
+
+    /**
+     * Every chunk is its own file under the chunk directory and the chunks are
+     * merged into the final file once the last one arrives.
+     */
+    CHUNKED,
+
+    /**
+     * The target file is preallocated when the upload starts and every chunk
+     * is written straight into its slot. There is no merge.
+     */
+    POSITIONAL
+}
@@ -1,13 +1,17 @@
 package org.brewman.upload.domain;
 
 import java.io.Serializable;
-import java.util.List;
 import java.util.Objects;
 
+import org.brewman.upload.domain.util.CustomDateTimeDeserializer;
+import org.brewman.upload.domain.util.CustomDateTimeSerializer;
 import org.brewman.upload.domain.util.CustomLocalDateSerializer;
 import org.brewman.upload.domain.util.ISO8601LocalDateDeserializer;
+import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
 import org.springframework.data.mongodb.core.mapping.Document;
 import org.springframework.data.mongodb.core.mapping.Field;
 
@@ -18,6 +22,10 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
  * A Upload.
  */
 @Document(collection = "UPLOAD")
+@CompoundIndexes({
+        @CompoundIndex(name = "state_last_activity", def = "{'state': 1, 'last_activity': 1}"),
+        @CompoundIndex(name = "uploaded_at_id", def = "{'uploaded_at': -1, '_id': -1}"),
+        @CompoundIndex(name = "state_uploaded_at_id", def = "{'state': 1, 'uploaded_at': -1, '_id': -1}") })
 public class Upload implements Serializable {
 
     /**
@@ -45,12 +53,24 @@ public class Upload implements Serializable {
     @Field("upload_complete")
     private Boolean uploadComplete;
 
+    @Field("state")
+    private UploadState state;
+
     @Field("total_chunks")
     private Integer totalChunks;
 
     @Field("total_size")
     private Long totalSize;
 
+    @Field("chunk_size")
+    private Integer chunkSize;
+
+    @Field("storage_mode")
+    private StorageMode storageMode;
+
+    @Field("received_chunks")
+    private Integer receivedChunks;
+
     /*
      * Should really be a LocalDateTime.
      */
@@ -60,9 +80,25 @@ public class Upload implements Serializable {
     private LocalDate completedAt;
 
     /*
-     * Manually added because JHipster doesn't generate this type.
+     * Manually added because JHipster doesn't generate this type. One bit per
+     * chunk, see ChunkBitmap.
      */
-    private List<Boolean> chunks;
+    @Field("chunk_bits")
+    private int[] chunkBits;
+
+    /*
+     * The shared UploadBlob holding the content, if it has been deduplicated.
+     */
+    @Field("blob_id")
+    private String blobId;
+
+    /*
+     * When a chunk was last received, so abandoned uploads can be found.
+     */
+    @JsonSerialize(using = CustomDateTimeSerializer.class)
+    @JsonDeserialize(using = CustomDateTimeDeserializer.class)
+    @Field("last_activity")
+    private DateTime lastActivity;
 
     public String getId() {
         return id;
@@ -104,6 +140,14 @@ public class Upload implements Serializable {
         this.uploadComplete = uploadComplete;
     }
 
+    public UploadState getState() {
+        return state;
+    }
+
+    public void setState(UploadState state) {
+        this.state = state;
+    }
+
     public Integer getTotalChunks() {
         return totalChunks;
     }
@@ -120,6 +164,30 @@ public class Upload implements Serializable {
         this.totalSize = totalSize;
     }
 
+    public Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    public void setChunkSize(Integer chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    public void setStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+    }
+
+    public Integer getReceivedChunks() {
+        return receivedChunks;
+    }
+
+    public void setReceivedChunks(Integer receivedChunks) {
+        this.receivedChunks = receivedChunks;
+    }
+
     public LocalDate getCompletedAt() {
         return completedAt;
     }
@@ -128,12 +196,28 @@ public class Upload implements Serializable {
         this.completedAt = completedAt;
     }
 
-    public List<Boolean> getChunks() {
-        return chunks;
+    public int[] getChunkBits() {
+        return chunkBits;
+    }
+
+    public void setChunkBits(int[] chunkBits) {
+        this.chunkBits = chunkBits;
+    }
+
+    public String getBlobId() {
+        return blobId;
+    }
+
+    public void setBlobId(String blobId) {
+        this.blobId = blobId;
+    }
+
+    public DateTime getLastActivity() {
+        return lastActivity;
     }
 
-    public void setChunks(List<Boolean> chunks) {
-        this.chunks = chunks;
+    public void setLastActivity(DateTime lastActivity) {
+        this.lastActivity = lastActivity;
     }
 
     @Override
@@ -163,7 +247,12 @@ public class Upload implements Serializable {
         return "Upload{" + "id=" + id + ", originalName='" + originalName + "'"
                 + ", uploadedAt='" + uploadedAt + "'" + ", md5sum='" + md5sum
                 + "'" + ", uploadComplete='" + uploadComplete + "'"
+                + ", state='" + state + "'"
                 + ", totalChunks='" + totalChunks + "'" + ", totalSize='"
-                + totalSize + "'" + ", completedAt='" + completedAt + "'" + '}';
+                + totalSize + "'" + ", chunkSize='" + chunkSize + "'"
+                + ", storageMode='" + storageMode + "'" + ", receivedChunks='"
+                + receivedChunks + "'" + ", completedAt='" + completedAt + "'"
+                + ", blobId='" + blobId + "'" + ", lastActivity='"
+                + lastActivity + "'" + '}';
     }
 }
@@ -0,0 +1,114 @@
+package org.brewman.upload.domain;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+import org.brewman.upload.domain.util.CustomLocalDateSerializer;
+import org.brewman.upload.domain.util.ISO8601LocalDateDeserializer;
+import org.joda.time.LocalDate;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * Content shared by every Upload with the same MD5SUM. The bytes are kept
+ * once, under the storage identifier of the first Upload that stored them,
+ * and removed when the last Upload referencing them goes.
+ */
+@Document(collection = "UPLOAD_BLOB")
+public class UploadBlob implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 4125872093713325981L;
+
+    /*
+     * The MD5SUM of the content.
+     */
+    @Id
+    private String id;
+
+    @Field("size")
+    private Long size;
+
+    @Field("storage_id")
+    private String storageId;
+
+    @Field("ref_count")
+    private Integer refCount;
+
+    @JsonSerialize(using = CustomLocalDateSerializer.class)
+    @JsonDeserialize(using = ISO8601LocalDateDeserializer.class)
+    @Field("created_at")
+    private LocalDate createdAt;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public String getStorageId() {
+        return storageId;
+    }
+
+    public void setStorageId(String storageId) {
+        this.storageId = storageId;
+    }
+
+    public Integer getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(Integer refCount) {
+        this.refCount = refCount;
+    }
+
+    public LocalDate getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDate createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        UploadBlob blob = (UploadBlob) o;
+
+        return Objects.equals(id, blob.id);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return "UploadBlob{" + "id=" + id + ", size='" + size + "'"
+                + ", storageId='" + storageId + "'" + ", refCount='"
+                + refCount + "'" + ", createdAt='" + createdAt + "'" + '}';
+    }
+}
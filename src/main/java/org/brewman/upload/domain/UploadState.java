@@ -0,0 +1,31 @@
+package org.brewman.upload.domain;
+
+/**
+ * Where an Upload is in its life. Clients poll for this once the last chunk
+ * has been sent.
+ * 
+ * @author danielshiplett
+ */
+public enum UploadState {
+
+    /**
+     * Chunks are still arriving.
+     */
+    RECEIVING,
+
+    /**
+     * Every chunk is in and the file is being put together and checksummed in
+     * the background.
+     */
+    FINALIZING,
+
+    /**
+     * The file is in place and the MD5SUM is set.
+     */
+    COMPLETE,
+
+    /**
+     * Finalization failed. The upload will not complete.
+     */
+    FAILED
+}
@@ -0,0 +1,35 @@
+package org.brewman.upload.repository;
+
+import java.util.List;
+
+import org.brewman.upload.domain.Upload;
+
+/**
+ * The outcome of recording a batch of chunks against an Upload.
+ */
+public class ChunkReceipt {
+
+    private final Upload upload;
+
+    private final List<Integer> recorded;
+
+    public ChunkReceipt(Upload upload, List<Integer> recorded) {
+        this.upload = upload;
+        this.recorded = recorded;
+    }
+
+    /**
+     * @return the Upload after the update, or null if none of the chunks were
+     *         new
+     */
+    public Upload getUpload() {
+        return upload;
+    }
+
+    /**
+     * @return the chunk numbers this call was the first to record
+     */
+    public List<Integer> getRecorded() {
+        return recorded;
+    }
+}
@@ -0,0 +1,11 @@
+package org.brewman.upload.repository;
+
+import org.brewman.upload.domain.UploadBlob;
+import org.springframework.data.mongodb.repository.MongoRepository;
+
+/**
+ * Spring Data MongoDB repository for the UploadBlob entity.
+ */
+public interface UploadBlobRepository extends MongoRepository<UploadBlob, String>, UploadBlobRepositoryCustom {
+
+}
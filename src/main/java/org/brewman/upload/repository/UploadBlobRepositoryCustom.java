@@ -0,0 +1,52 @@
+package org.brewman.upload.repository;
+
+import org.brewman.upload.domain.UploadBlob;
+
+/**
+ * Reference counting on the UploadBlob entity. Every change is a single
+ * atomic write so concurrent uploads of the same content agree on one blob.
+ */
+public interface UploadBlobRepositoryCustom {
+
+    /**
+     * Take a reference on the blob for this content, creating it if there
+     * isn't one yet.
+     *
+     * @param md5sum
+     *            the MD5SUM of the content
+     * @param size
+     *            the size of the content
+     * @param storageId
+     *            where the caller has the content stored, used only if the
+     *            blob is created
+     *
+     * @return the blob after the update. If its storage id isn't the one
+     *         passed in, the content was already stored elsewhere.
+     */
+    UploadBlob retain(String md5sum, long size, String storageId);
+
+    /**
+     * Take a reference on the blob for this content only if it is already
+     * stored.
+     *
+     * @param md5sum
+     *            the MD5SUM of the content
+     * @param size
+     *            the size the content must have
+     *
+     * @return the blob after the update, or null if there isn't one
+     */
+    UploadBlob retainExisting(String md5sum, long size);
+
+    /**
+     * Drop a reference on the blob. The blob is removed once nothing
+     * references it.
+     *
+     * @param md5sum
+     *            the MD5SUM of the content
+     *
+     * @return the removed blob if this was the last reference, so its content
+     *         can be deleted, otherwise null
+     */
+    UploadBlob release(String md5sum);
+}
@@ -0,0 +1,92 @@
+package org.brewman.upload.repository;
+
+import javax.inject.Inject;
+
+import org.brewman.upload.domain.UploadBlob;
+import org.joda.time.LocalDate;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+/**
+ * MongoTemplate backed implementation of the UploadBlob reference counting.
+ *
+ * @author danielshiplett
+ */
+public class UploadBlobRepositoryImpl implements UploadBlobRepositoryCustom {
+
+    @Inject
+    private MongoTemplate mongoTemplate;
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadBlobRepositoryCustom#retain(java.lang
+     * .String, long, java.lang.String)
+     */
+    @Override
+    public UploadBlob retain(String md5sum, long size, String storageId) {
+        Update update = new Update().inc("ref_count", 1)
+                .setOnInsert("size", size)
+                .setOnInsert("storage_id", storageId)
+                .setOnInsert("created_at", new LocalDate());
+
+        Query query = new Query(Criteria.where("_id").is(md5sum));
+        FindAndModifyOptions options = FindAndModifyOptions.options()
+                .upsert(true).returnNew(true);
+
+        try {
+            return mongoTemplate.findAndModify(query, update, options,
+                    UploadBlob.class);
+        } catch (DuplicateKeyException e) {
+            /*
+             * Two upserts of the same new content raced, the other one
+             * created it so this one is now a plain increment.
+             */
+            return mongoTemplate.findAndModify(query, update, options,
+                    UploadBlob.class);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadBlobRepositoryCustom#retainExisting
+     * (java.lang.String, long)
+     */
+    @Override
+    public UploadBlob retainExisting(String md5sum, long size) {
+        Query query = new Query(Criteria.where("_id").is(md5sum).and("size")
+                .is(size).and("ref_count").gt(0));
+
+        return mongoTemplate.findAndModify(query,
+                new Update().inc("ref_count", 1), FindAndModifyOptions
+                        .options().returnNew(true), UploadBlob.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadBlobRepositoryCustom#release(java.
+     * lang.String)
+     */
+    @Override
+    public UploadBlob release(String md5sum) {
+        mongoTemplate.updateFirst(new Query(Criteria.where("_id").is(md5sum)),
+                new Update().inc("ref_count", -1), UploadBlob.class);
+
+        /*
+         * Only remove it if nobody took a new reference in between. Whoever
+         * removes it owns deleting the content.
+         */
+        return mongoTemplate.findAndRemove(
+                new Query(Criteria.where("_id").is(md5sum).and("ref_count")
+                        .lte(0)), UploadBlob.class);
+    }
+}
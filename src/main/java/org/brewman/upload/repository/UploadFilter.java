@@ -0,0 +1,90 @@
+package org.brewman.upload.repository;
+
+import org.brewman.upload.domain.UploadState;
+import org.joda.time.LocalDate;
+
+/**
+ * What to list uploads by, and where the previous page ended. Anything left
+ * null doesn't filter.
+ */
+public class UploadFilter {
+
+    private UploadState state;
+
+    private LocalDate from;
+
+    private LocalDate to;
+
+    private boolean paged;
+
+    private LocalDate afterUploadedAt;
+
+    private String afterId;
+
+    /**
+     * Only uploads in this state.
+     */
+    public UploadFilter withState(UploadState state) {
+        this.state = state;
+        return this;
+    }
+
+    /**
+     * Only uploads started on or after this day.
+     */
+    public UploadFilter withFrom(LocalDate from) {
+        this.from = from;
+        return this;
+    }
+
+    /**
+     * Only uploads started on or before this day.
+     */
+    public UploadFilter withTo(LocalDate to) {
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Only uploads that come after this one, newest first.
+     * 
+     * @param uploadedAt
+     *            the day the last upload of the previous page was started,
+     *            which may be null for old records
+     * @param id
+     *            the id of the last upload of the previous page
+     */
+    public UploadFilter withAfter(LocalDate uploadedAt, String id) {
+        this.paged = true;
+        this.afterUploadedAt = uploadedAt;
+        this.afterId = id;
+        return this;
+    }
+
+    public UploadState getState() {
+        return state;
+    }
+
+    public LocalDate getFrom() {
+        return from;
+    }
+
+    public LocalDate getTo() {
+        return to;
+    }
+
+    /**
+     * @return whether this continues from a previous page
+     */
+    public boolean isPaged() {
+        return paged;
+    }
+
+    public LocalDate getAfterUploadedAt() {
+        return afterUploadedAt;
+    }
+
+    public String getAfterId() {
+        return afterId;
+    }
+}
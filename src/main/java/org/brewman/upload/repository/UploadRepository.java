@@ -6,6 +6,6 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 /**
  * Spring Data MongoDB repository for the Upload entity.
  */
-public interface UploadRepository extends MongoRepository<Upload,String> {
+public interface UploadRepository extends MongoRepository<Upload,String>, UploadRepositoryCustom {
 
 }
@@ -0,0 +1,135 @@
+package org.brewman.upload.repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.brewman.upload.domain.Upload;
+import org.joda.time.DateTime;
+
+/**
+ * Custom operations on the Upload entity that can't be expressed as derived
+ * queries.
+ */
+public interface UploadRepositoryCustom {
+
+    /**
+     * Mark a chunk as received in the chunk bitmap and bump the received
+     * counter. Only the first receipt of a chunk counts, so this is safe to
+     * race across threads and nodes.
+     *
+     * @param id
+     *            the Upload id
+     * @param flowChunkNumber
+     *            the 1-based chunk number
+     *
+     * @return the Upload after the update with only the fields needed to
+     *         carry on with the chunk, or null if the chunk was already
+     *         received
+     */
+    Upload recordChunk(String id, int flowChunkNumber);
+
+    /**
+     * Mark several chunks as received with one bitmap update and one counter
+     * update. As with {@link #recordChunk(String, int)} only the first receipt
+     * of each chunk counts. The bitmap words are read first and the update
+     * only goes through if they haven't changed since, so new chunks take
+     * two round trips (more if other receipts keep getting in first) and
+     * duplicates take one.
+     *
+     * @param id
+     *            the Upload id
+     * @param flowChunkNumbers
+     *            the 1-based chunk numbers
+     *
+     * @return the Upload after the update and the chunks that were new
+     */
+    ChunkReceipt recordChunks(String id, Collection<Integer> flowChunkNumbers);
+
+    /**
+     * Move a fully received Upload from RECEIVING to FINALIZING and mark it
+     * complete. Only one caller can win this, whichever node it is on. The
+     * last activity is when finalization started.
+     *
+     * @param id
+     *            the Upload id
+     *
+     * @return the Upload after the update, or null if it wasn't RECEIVING
+     */
+    Upload startFinalizing(String id);
+
+    /**
+     * Take over an Upload that has been FINALIZING since before the cutoff,
+     * most likely because the node finalizing it went down. Its activity is
+     * brought up to date so no one else takes it over as well. Only the id is
+     * loaded.
+     *
+     * @param staleBefore
+     *            the cutoff
+     *
+     * @return the Upload, or null if there are none
+     */
+    Upload claimStalledFinalizing(DateTime staleBefore);
+
+    /**
+     * Find uploads that were never finished and have had no chunk since the
+     * cutoff. Only the id and blob_id are loaded.
+     *
+     * @param staleBefore
+     *            the cutoff
+     * @param limit
+     *            the most to return
+     *
+     * @return the abandoned uploads
+     */
+    List<Upload> findAbandoned(DateTime staleBefore, int limit);
+
+    /**
+     * Remove abandoned uploads in bulk. Any that received a chunk since they
+     * were found are left alone.
+     *
+     * @param ids
+     *            the Upload ids
+     * @param staleBefore
+     *            the same cutoff they were found with
+     *
+     * @return the ids that were removed
+     */
+    List<String> removeAbandoned(Collection<String> ids, DateTime staleBefore);
+
+    /**
+     * A page of uploads, newest first, without the chunk bitmap. The page
+     * starts where the filter says the previous one ended rather than by
+     * skipping, so a page deep into the collection costs no more than the
+     * first.
+     *
+     * @param filter
+     *            what to list and where the previous page ended
+     * @param limit
+     *            the most to return
+     *
+     * @return the uploads, newest first
+     */
+    List<Upload> findPage(UploadFilter filter, int limit);
+
+    /**
+     * Hand every upload the filter matches to the action as it comes off the
+     * cursor, without the chunk bitmap. Only one is held at a time however
+     * many there are.
+     *
+     * @param filter
+     *            what to go through
+     * @param action
+     *            what to do with each upload
+     */
+    void forEach(UploadFilter filter, Consumer<Upload> action);
+
+    /**
+     * Mark the Upload as FAILED if it is still RECEIVING or FINALIZING. One
+     * that has already completed is left alone.
+     *
+     * @param id
+     *            the Upload id
+     */
+    void markFailed(String id);
+}
@@ -0,0 +1,417 @@
+package org.brewman.upload.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+
+import javax.inject.Inject;
+
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.BasicUpdate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import com.mongodb.BasicDBObject;
+
+/**
+ * MongoTemplate backed implementation of the custom Upload operations.
+ *
+ * @author danielshiplett
+ */
+public class UploadRepositoryImpl implements UploadRepositoryCustom {
+
+    @Inject
+    private MongoTemplate mongoTemplate;
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#recordChunk(java
+     * .lang.String, int)
+     */
+    @Override
+    public Upload recordChunk(String id, int flowChunkNumber) {
+        return recordChunks(id, Collections.singletonList(flowChunkNumber))
+                .getUpload();
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#recordChunks(java
+     * .lang.String, java.util.Collection)
+     */
+    @Override
+    public ChunkReceipt recordChunks(String id,
+            Collection<Integer> flowChunkNumbers) {
+        SortedMap<Integer, Integer> masks = new TreeMap<>();
+
+        for (int n : flowChunkNumbers) {
+            masks.merge(ChunkBitmap.wordIndex(n), ChunkBitmap.mask(n),
+                    (a, b) -> a | b);
+        }
+
+        if (masks.isEmpty()) {
+            return new ChunkReceipt(null, Collections.emptyList());
+        }
+
+        int firstWord = masks.firstKey();
+        int words = masks.lastKey() - firstWord + 1;
+
+        /*
+         * Compare-and-set every word the chunks touch together with the
+         * counter, in one update. Whoever changes a word owns the bits it
+         * added, so a duplicate can't bump the counter and the bits can never
+         * get ahead of it. If another receipt got in between the read and the
+         * write nothing is changed, so read again and retry.
+         *
+         * That is two round trips for a new chunk. The server can't test a
+         * single bit in a query, so there is no way to make the one update
+         * conditional on the chunk's own bit. The read brings the activity up
+         * to date as well, so a duplicate costs only the one.
+         */
+        while (true) {
+            Query bitQuery = new Query(Criteria.where("_id").is(id));
+            bitQuery.fields().include("_id").include("total_chunks")
+                    .slice("chunk_bits", firstWord, words);
+
+            Upload current = mongoTemplate.findAndModify(bitQuery,
+                    new Update().set("last_activity", new Date()),
+                    Upload.class);
+
+            if (current == null) {
+                return new ChunkReceipt(null, Collections.emptyList());
+            }
+
+            int[] previous = current.getChunkBits();
+
+            if (previous == null) {
+                if (!createChunkBits(id, current.getTotalChunks())) {
+                    return new ChunkReceipt(null, Collections.emptyList());
+                }
+
+                continue;
+            }
+
+            Criteria guard = Criteria.where("_id").is(id);
+            BasicDBObject set = new BasicDBObject("last_activity", new Date());
+            List<Integer> recorded = new ArrayList<>();
+
+            for (Map.Entry<Integer, Integer> word : masks.entrySet()) {
+                int offset = word.getKey() - firstWord;
+
+                /*
+                 * Past the end of the bitmap, so not a chunk of this upload.
+                 */
+                if (offset >= previous.length) {
+                    continue;
+                }
+
+                int old = previous[offset];
+                int added = word.getValue() & ~old;
+
+                if (added != 0) {
+                    guard = guard.and("chunk_bits." + word.getKey()).is(old);
+                    set.append("chunk_bits." + word.getKey(), old | added);
+
+                    for (int n : new TreeSet<>(flowChunkNumbers)) {
+                        if (ChunkBitmap.wordIndex(n) == word.getKey()
+                                && (added & ChunkBitmap.mask(n)) != 0) {
+                            recorded.add(n);
+                        }
+                    }
+                }
+            }
+
+            /*
+             * Nothing new. The read has already recorded the activity, any
+             * chunk, even a duplicate, shows the upload is still alive.
+             */
+            if (recorded.isEmpty()) {
+                return new ChunkReceipt(null, recorded);
+            }
+
+            Query query = new Query(guard);
+            query.fields().include("total_chunks").include("total_size")
+                    .include("chunk_size").include("storage_mode")
+                    .include("upload_complete").include("state")
+                    .include("received_chunks").include("chunk_bits")
+                    .include("last_activity");
+
+            Upload updated = mongoTemplate.findAndModify(query,
+                    new BasicUpdate(new BasicDBObject("$set", set).append(
+                            "$inc", new BasicDBObject("received_chunks",
+                                    recorded.size()))),
+                    FindAndModifyOptions.options().returnNew(true),
+                    Upload.class);
+
+            if (updated != null) {
+                return new ChunkReceipt(updated, recorded);
+            }
+        }
+    }
+
+    /**
+     * Give a record from before the bitmap was kept an empty one. Nothing is
+     * changed if it has got one in the meantime.
+     *
+     * @param id
+     * @param totalChunks
+     *
+     * @return false if the record has no total to size the bitmap by
+     */
+    private boolean createChunkBits(String id, Integer totalChunks) {
+        if (totalChunks == null) {
+            return false;
+        }
+
+        mongoTemplate.updateFirst(
+                new Query(Criteria.where("_id").is(id).and("chunk_bits")
+                        .exists(false)),
+                new Update().set("chunk_bits",
+                        ChunkBitmap.create(totalChunks)), Upload.class);
+
+        return true;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#startFinalizing(
+     * java.lang.String)
+     */
+    @Override
+    public Upload startFinalizing(String id) {
+        /*
+         * Records from before the state was tracked don't have one at all.
+         */
+        Query query = new Query(Criteria.where("_id").is(id).and("state")
+                .in(UploadState.RECEIVING.name(), null));
+
+        Update update = new Update()
+                .set("state", UploadState.FINALIZING.name())
+                .set("upload_complete", true)
+                .set("last_activity", new Date());
+
+        return mongoTemplate.findAndModify(query, update,
+                FindAndModifyOptions.options().returnNew(true), Upload.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see org.brewman.upload.repository.UploadRepositoryCustom#
+     * claimStalledFinalizing(org.joda.time.DateTime)
+     */
+    @Override
+    public Upload claimStalledFinalizing(DateTime staleBefore) {
+        Query query = new Query(Criteria.where("state")
+                .is(UploadState.FINALIZING.name()).and("last_activity")
+                .lt(staleBefore.toDate()));
+        query.fields().include("_id");
+
+        return mongoTemplate.findAndModify(query,
+                new Update().set("last_activity", new Date()), Upload.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#findAbandoned(org
+     * .joda.time.DateTime, int)
+     */
+    @Override
+    public List<Upload> findAbandoned(DateTime staleBefore, int limit) {
+        Query query = new Query(abandoned(staleBefore)).limit(limit);
+        query.fields().include("_id").include("blob_id");
+
+        return mongoTemplate.find(query, Upload.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#removeAbandoned(
+     * java.util.Collection, org.joda.time.DateTime)
+     */
+    @Override
+    public List<String> removeAbandoned(Collection<String> ids,
+            DateTime staleBefore) {
+        mongoTemplate.remove(
+                new Query(new Criteria().andOperator(
+                        Criteria.where("_id").in(ids), abandoned(staleBefore))),
+                Upload.class);
+
+        /*
+         * A remove only reports a count, so look for the ones that were spared.
+         */
+        Query survivors = new Query(Criteria.where("_id").in(ids));
+        survivors.fields().include("_id");
+
+        List<String> removed = new ArrayList<>(ids);
+        mongoTemplate.find(survivors, Upload.class).forEach(
+                u -> removed.remove(u.getId()));
+
+        return removed;
+    }
+
+    /**
+     * Unfinished uploads with no chunk since the cutoff. Records from before
+     * activity was tracked go by the day they were started, and records from
+     * before the state was tracked by the complete flag.
+     *
+     * @param staleBefore
+     *
+     * @return
+     */
+    private static Criteria abandoned(DateTime staleBefore) {
+        Date cutoff = staleBefore.toDate();
+
+        return new Criteria().andOperator(
+                new Criteria().orOperator(
+                        Criteria.where("state").in(
+                                UploadState.RECEIVING.name(),
+                                UploadState.FAILED.name()),
+                        Criteria.where("state").is(null)
+                                .and("upload_complete").ne(true)),
+                new Criteria().orOperator(
+                        Criteria.where("last_activity").lt(cutoff),
+                        Criteria.where("last_activity").is(null)
+                                .and("uploaded_at").lt(cutoff)));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#findPage(org.brewman
+     * .upload.repository.UploadFilter, int)
+     */
+    @Override
+    public List<Upload> findPage(UploadFilter filter, int limit) {
+        Query query = filtered(filter);
+        query.with(new Sort(Sort.Direction.DESC, "uploaded_at", "_id")).limit(
+                limit);
+        query.fields().exclude("chunk_bits");
+
+        return mongoTemplate.find(query, Upload.class);
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#forEach(org.brewman
+     * .upload.repository.UploadFilter, java.util.function.Consumer)
+     */
+    @Override
+    public void forEach(UploadFilter filter, Consumer<Upload> action) {
+        Query query = filtered(filter);
+        query.fields().exclude("chunk_bits");
+
+        MongoConverter converter = mongoTemplate.getConverter();
+
+        mongoTemplate.executeQuery(query,
+                mongoTemplate.getCollectionName(Upload.class),
+                document -> action.accept(converter.read(Upload.class,
+                        document)));
+    }
+
+    /**
+     * The query for everything the filter matches.
+     *
+     * @param filter
+     *
+     * @return
+     */
+    private static Query filtered(UploadFilter filter) {
+        List<Criteria> criteria = new ArrayList<>();
+
+        if (filter.getState() != null) {
+            criteria.add(Criteria.where("state").is(filter.getState().name()));
+        }
+
+        if (filter.getFrom() != null) {
+            criteria.add(Criteria.where("uploaded_at").gte(
+                    filter.getFrom().toDate()));
+        }
+
+        if (filter.getTo() != null) {
+            criteria.add(Criteria.where("uploaded_at").lt(
+                    filter.getTo().plusDays(1).toDate()));
+        }
+
+        if (filter.isPaged()) {
+            criteria.add(after(filter.getAfterUploadedAt(),
+                    filter.getAfterId()));
+        }
+
+        return criteria.isEmpty() ? new Query() : new Query(
+                new Criteria().andOperator(criteria
+                        .toArray(new Criteria[criteria.size()])));
+    }
+
+    /**
+     * Everything after the given upload in uploaded_at then _id order, newest
+     * first. Records without a day sort last.
+     *
+     * @param uploadedAt
+     * @param id
+     *
+     * @return
+     */
+    private static Criteria after(LocalDate uploadedAt, String id) {
+        if (uploadedAt == null) {
+            return Criteria.where("uploaded_at").is(null).and("_id").lt(id);
+        }
+
+        Date day = uploadedAt.toDate();
+
+        return new Criteria().orOperator(
+                Criteria.where("uploaded_at").lt(day),
+                Criteria.where("uploaded_at").is(day).and("_id").lt(id),
+                Criteria.where("uploaded_at").is(null));
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see
+     * org.brewman.upload.repository.UploadRepositoryCustom#markFailed(java.lang
+     * .String)
+     */
+    @Override
+    public void markFailed(String id) {
+        /*
+         * Never undo a finalization that did finish, wherever it ran.
+         */
+        Query query = new Query(Criteria.where("_id").is(id).and("state")
+                .in(UploadState.RECEIVING.name(),
+                        UploadState.FINALIZING.name()));
+
+        mongoTemplate.updateFirst(query,
+                new Update().set("state", UploadState.FAILED.name()),
+                Upload.class);
+    }
+}
@@ -0,0 +1,69 @@
+package org.brewman.upload.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.brewman.upload.domain.Upload;
+
+/**
+ * What happened to each chunk of a batched save, so a client can retry just
+ * the ones that failed.
+ * 
+ * @author danielshiplett
+ */
+public class ChunkBatchResult {
+
+    public enum Status {
+        SAVED, DUPLICATE, FAILED
+    }
+
+    /**
+     * The result for a single chunk in the batch.
+     */
+    public static class Chunk {
+
+        private final int flowChunkNumber;
+
+        private final Status status;
+
+        private final String error;
+
+        public Chunk(int flowChunkNumber, Status status, String error) {
+            this.flowChunkNumber = flowChunkNumber;
+            this.status = status;
+            this.error = error;
+        }
+
+        public int getFlowChunkNumber() {
+            return flowChunkNumber;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private Upload upload;
+
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    public Upload getUpload() {
+        return upload;
+    }
+
+    public void setUpload(Upload upload) {
+        this.upload = upload;
+    }
+
+    public List<Chunk> getChunks() {
+        return chunks;
+    }
+
+    public void add(int flowChunkNumber, Status status, String error) {
+        chunks.add(new Chunk(flowChunkNumber, status, error));
+    }
+}
@@ -0,0 +1,18 @@
+package org.brewman.upload.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a chunk doesn't fit its upload: the chunk number isn't one of
+ * its chunks or the chunk size doesn't match the chunk's slot.
+ * 
+ * @author danielshiplett
+ */
+public class ChunkOutOfRangeException extends IOException {
+
+    private static final long serialVersionUID = -2741093425398851716L;
+
+    public ChunkOutOfRangeException(String message) {
+        super(message);
+    }
+}
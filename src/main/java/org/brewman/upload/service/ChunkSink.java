@@ -0,0 +1,41 @@
+package org.brewman.upload.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.brewman.upload.domain.Upload;
+
+/**
+ * Receives the data of a single chunk as it arrives. Either commit or abort
+ * must be called once the caller is done.
+ * 
+ * @author danielshiplett
+ */
+public interface ChunkSink {
+
+    /**
+     * Write everything remaining in the buffer.
+     * 
+     * @param src
+     * 
+     * @throws IOException
+     *             if the write fails or goes past the declared chunk size
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * All the data has been written. Record the chunk against the Upload.
+     * 
+     * @return The Upload object for this upload. It will already be persisted
+     *         in the DB.
+     * 
+     * @throws IOException
+     *             if fewer bytes arrived than declared
+     */
+    Upload commit() throws IOException;
+
+    /**
+     * Give up on the chunk. It is not recorded and can be sent again.
+     */
+    void abort();
+}
@@ -0,0 +1,18 @@
+package org.brewman.upload.service;
+
+import java.io.IOException;
+
+/**
+ * Thrown when an upload can't be started because there isn't room to store
+ * it.
+ * 
+ * @author danielshiplett
+ */
+public class InsufficientStorageException extends IOException {
+
+    private static final long serialVersionUID = 3395873052632871466L;
+
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
+}
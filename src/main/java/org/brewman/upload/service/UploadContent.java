@@ -0,0 +1,77 @@
+package org.brewman.upload.service;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.storage.StorageEngine;
+
+/**
+ * The stored content of a finished upload, wherever it ended up. Shared
+ * content may be kept under another upload's storage id.
+ * 
+ * @author danielshiplett
+ */
+public class UploadContent {
+
+    private final Upload upload;
+
+    private final String storageId;
+
+    private final long size;
+
+    private final Path path;
+
+    private final StorageEngine storageEngine;
+
+    public UploadContent(Upload upload, String storageId, long size,
+            Path path, StorageEngine storageEngine) {
+        this.upload = upload;
+        this.storageId = storageId;
+        this.size = size;
+        this.path = path;
+        this.storageEngine = storageEngine;
+    }
+
+    public Upload getUpload() {
+        return upload;
+    }
+
+    /**
+     * @return the id the content is stored under
+     */
+    public String getStorageId() {
+        return storageId;
+    }
+
+    /**
+     * @return the size of the content in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the local file holding the content, or null if it isn't a plain
+     *         local file and has to be read through {@link #open(long, long)}
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Read part of the content.
+     * 
+     * @param position
+     * @param length
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    public ReadableByteChannel open(long position, long length)
+            throws IOException {
+        return storageEngine.readRange(storageId, position, length);
+    }
+}
@@ -0,0 +1,140 @@
+package org.brewman.upload.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics for the upload pipeline. Every phase is timed explicitly because
+ * most of them happen in private methods that a metrics annotation proxy never
+ * sees.
+ * 
+ * Everything is registered under this class's name, so the timers show up
+ * with the service timers on the admin metrics page and all of it goes out
+ * over JMX with the rest of the registry.
+ * 
+ * @author danielshiplett
+ */
+public class UploadMetrics {
+
+    /**
+     * The parts of receiving an upload that are timed.
+     */
+    public enum Phase {
+        MULTIPART_PARSE("multipartParse"), METADATA_READ("metadataRead"), DISK_WRITE(
+                "diskWrite"), METADATA_WRITE("metadataWrite"), MERGE("merge"), DIGEST(
+                "digest");
+
+        private final String metricName;
+
+        Phase(String metricName) {
+            this.metricName = metricName;
+        }
+
+        public String getMetricName() {
+            return metricName;
+        }
+    }
+
+    /**
+     * A chunk being written. Close it once the chunk is done, whichever way.
+     */
+    public interface InFlight extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private final Map<Phase, Timer> timers = new EnumMap<>(Phase.class);
+
+    private final Meter bytes;
+
+    private final Histogram chunkSizes;
+
+    private final AtomicInteger chunks = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> uploads = new ConcurrentHashMap<>();
+
+    public UploadMetrics(MetricRegistry metricRegistry) {
+        for (Phase phase : Phase.values()) {
+            timers.put(phase, metricRegistry.timer(MetricRegistry.name(
+                    UploadMetrics.class, phase.getMetricName())));
+        }
+
+        bytes = metricRegistry.meter(MetricRegistry.name(UploadMetrics.class,
+                "bytes"));
+        chunkSizes = metricRegistry.histogram(MetricRegistry.name(
+                UploadMetrics.class, "chunkSize"));
+
+        metricRegistry.register(MetricRegistry.name(UploadMetrics.class,
+                "inFlight", "chunks"), (Gauge<Integer>) chunks::get);
+        metricRegistry.register(MetricRegistry.name(UploadMetrics.class,
+                "inFlight", "uploads"), (Gauge<Integer>) uploads::size);
+    }
+
+    /**
+     * Start timing a phase.
+     * 
+     * @param phase
+     * 
+     * @return the context to close when the phase is over
+     */
+    public Timer.Context time(Phase phase) {
+        return timers.get(phase).time();
+    }
+
+    /**
+     * Record a phase that was timed piece by piece.
+     * 
+     * @param phase
+     * @param nanos
+     *            the time it took in nanoseconds
+     */
+    public void update(Phase phase, long nanos) {
+        timers.get(phase).update(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A chunk has been written to storage.
+     * 
+     * @param size
+     *            its size in bytes
+     */
+    public void chunkWritten(long size) {
+        bytes.mark(size);
+        chunkSizes.update(size);
+    }
+
+    /**
+     * A chunk of an upload has started to be written. The upload counts as in
+     * flight for as long as any of its chunks are.
+     * 
+     * @param flowIdentifier
+     * 
+     * @return the chunk in flight
+     */
+    public InFlight startChunk(String flowIdentifier) {
+        chunks.incrementAndGet();
+        uploads.computeIfAbsent(flowIdentifier, id -> new AtomicInteger())
+                .incrementAndGet();
+
+        AtomicInteger done = new AtomicInteger();
+
+        return () -> {
+            if (done.getAndIncrement() == 0) {
+                chunks.decrementAndGet();
+                uploads.computeIfPresent(flowIdentifier,
+                        (id, count) -> count.decrementAndGet() == 0 ? null
+                                : count);
+            }
+        };
+    }
+}
@@ -1,6 +1,8 @@
 package org.brewman.upload.service;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 
 import org.brewman.upload.domain.Upload;
 import org.springframework.web.multipart.MultipartFile;
@@ -49,6 +51,9 @@ public interface UploadService {
      * @return The Upload object for this upload. It will already be persisted
      *         in the DB.
      * 
+     * @throws ChunkOutOfRangeException
+     *             if the chunk number isn't one of the upload's chunks or the
+     *             chunk size doesn't match its slot
      * @throws IOException
      */
     Upload saveChunk(String flowIdentifier, int flowChunkNumber,
@@ -56,6 +61,106 @@ public interface UploadService {
             int flowTotalChunks, long flowTotalSize, MultipartFile file)
             throws IOException;
 
+    /**
+     * Save a single chunk streamed straight from the request body rather than
+     * from a multipart part. The same checks apply as for a multipart chunk.
+     * 
+     * @param flowIdentifier
+     *            the unique identifier of the file
+     * @param flowChunkNumber
+     *            from flow-ng
+     * @param flowChunkSize
+     *            from flow-ng
+     * @param flowCurrentChunkSize
+     *            from flow-ng
+     * @param flowFilename
+     *            from flow-ng
+     * @param flowTotalChunks
+     *            from flow-ng
+     * @param flowTotalSize
+     *            from flow-ng
+     * @param in
+     *            the chunk data, left open
+     * @param size
+     *            how many bytes to read from the stream
+     * 
+     * @return The Upload object for this upload. It will already be persisted
+     *         in the DB.
+     * 
+     * @throws ChunkOutOfRangeException
+     *             if the chunk number isn't one of the upload's chunks or the
+     *             chunk size doesn't match its slot
+     * @throws IOException
+     */
+    Upload saveChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize, InputStream in, long size)
+            throws IOException;
+
+    /**
+     * Start saving a single chunk that will be handed over piece by piece as
+     * it arrives, for callers doing non-blocking reads. The same checks apply
+     * as for a multipart chunk. If the chunk was already received the data is
+     * read and thrown away.
+     * 
+     * @param flowIdentifier
+     *            the unique identifier of the file
+     * @param flowChunkNumber
+     *            from flow-ng
+     * @param flowChunkSize
+     *            from flow-ng
+     * @param flowCurrentChunkSize
+     *            from flow-ng
+     * @param flowFilename
+     *            from flow-ng
+     * @param flowTotalChunks
+     *            from flow-ng
+     * @param flowTotalSize
+     *            from flow-ng
+     * 
+     * @return the sink to write the chunk data to
+     * 
+     * @throws ChunkOutOfRangeException
+     *             if the chunk number isn't one of the upload's chunks or the
+     *             chunk size doesn't match its slot
+     * @throws IOException
+     *             if the upload doesn't exist or has changed
+     */
+    ChunkSink openChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize) throws IOException;
+
+    /**
+     * Save several chunks of the same upload at once. The chunks are written
+     * in one pass and recorded with a single update of the Upload record. A
+     * chunk that can't be written doesn't stop the others.
+     * 
+     * @param flowIdentifier
+     *            the unique identifier of the file
+     * @param flowChunkSize
+     *            from flow-ng
+     * @param flowFilename
+     *            from flow-ng
+     * @param flowTotalChunks
+     *            from flow-ng
+     * @param flowTotalSize
+     *            from flow-ng
+     * @param flowChunkNumbers
+     *            the chunk number of each file, in the same order
+     * @param files
+     *            the Multipart HTTP chunks
+     * 
+     * @return the result of each chunk and the Upload as it stands after the
+     *         batch
+     * 
+     * @throws IOException
+     *             if the upload doesn't exist or has changed
+     */
+    ChunkBatchResult saveChunks(String flowIdentifier, int flowChunkSize,
+            String flowFilename, int flowTotalChunks, long flowTotalSize,
+            List<Integer> flowChunkNumbers, List<MultipartFile> files)
+            throws IOException;
+
     /**
      * Save a single chunk to a file. The file doesn't not already have to
      * exist.
@@ -81,6 +186,10 @@ public interface UploadService {
      * @return true if the chunk already exists or false if it does not and we
      *         want to allow it.
      * 
+     * @throws InsufficientStorageException
+     *             if a new upload won't fit in the space left
+     * @throws ChunkOutOfRangeException
+     *             if the chunk number isn't one of the upload's chunks
      * @throws IOException
      *             if we don't want to allow the file upload
      */
@@ -88,6 +197,41 @@ public interface UploadService {
             int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
             int flowTotalChunks, long flowTotalSize) throws IOException;
 
+    /**
+     * The same as the plain test but the client can also say what the MD5SUM
+     * of the whole file is. If that content is already stored, the upload is
+     * completed there and then and every chunk tests as already uploaded.
+     * 
+     * @param flowIdentifier
+     *            the unique identifier of the file
+     * @param flowChunkNumber
+     *            from flow-ng
+     * @param flowChunkSize
+     *            from flow-ng
+     * @param flowCurrentChunkSize
+     *            from flow-ng
+     * @param flowFilename
+     *            from flow-ng
+     * @param flowTotalChunks
+     *            from flow-ng
+     * @param flowTotalSize
+     *            from flow-ng
+     * @param flowFileMd5
+     *            the MD5SUM of the whole file, may be null
+     * 
+     * @return true if the chunk already exists or false if it does not and we
+     *         want to allow it.
+     * 
+     * @throws InsufficientStorageException
+     *             if a new upload won't fit in the space left
+     * @throws IOException
+     *             if we don't want to allow the file upload
+     */
+    boolean testChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize, String flowFileMd5)
+            throws IOException;
+
     /**
      * Get another available upload identifier. Needed by flow-ng to get a
      * unique identifier for the upload. We will also use it as the filename on
@@ -96,4 +240,52 @@ public interface UploadService {
      * @return
      */
     String getAvailableIdentifier();
+
+    /**
+     * Get an identifier for a file whose content may already be stored. If it
+     * is, the upload is completed straight away under the new identifier and
+     * nothing needs to be sent.
+     * 
+     * @param flowFileMd5
+     *            the MD5SUM of the whole file
+     * @param flowFilename
+     *            from flow-ng
+     * @param flowChunkSize
+     *            from flow-ng
+     * @param flowTotalChunks
+     *            from flow-ng
+     * @param flowTotalSize
+     *            from flow-ng
+     * 
+     * @return the new identifier
+     * 
+     * @throws IOException
+     */
+    String getAvailableIdentifier(String flowFileMd5, String flowFilename,
+            int flowChunkSize, int flowTotalChunks, long flowTotalSize)
+            throws IOException;
+
+    /**
+     * Delete an upload and its content. Content shared with other uploads is
+     * only removed along with the last of them.
+     * 
+     * @param flowIdentifier
+     *            the unique identifier of the file
+     * 
+     * @throws IOException
+     */
+    void deleteUpload(String flowIdentifier) throws IOException;
+
+    /**
+     * Get the stored content of a finished upload.
+     * 
+     * @param flowIdentifier
+     *            the unique identifier of the file
+     * 
+     * @return the content, or null if there is no such upload or it isn't
+     *         complete yet
+     * 
+     * @throws IOException
+     */
+    UploadContent getContent(String flowIdentifier) throws IOException;
 }
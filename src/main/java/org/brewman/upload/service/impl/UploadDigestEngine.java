@@ -0,0 +1,176 @@
+package org.brewman.upload.service.impl;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps a running MD5 for every upload in progress so the final sum is ready
+ * as soon as the last chunk lands instead of re-reading the whole file.
+ * 
+ * The digest is advanced over the contiguous prefix of received chunks. Each
+ * chunk is hashed right after it is written (while it is still in the page
+ * cache) if it is the next one in line; otherwise it is picked up as soon as
+ * the gap in front of it fills in.
+ * 
+ * A MessageDigest can't be persisted, so after a restart the state is rebuilt
+ * from whatever prefix is already on disk the first time the upload sees a
+ * new chunk.
+ * 
+ * State is only started for an upload that is still receiving, and an upload
+ * that has been finished or discarded is remembered so a late or duplicate
+ * chunk can't start it again. Both are bounded and expire, so a node that
+ * only ever sees some of an upload's chunks doesn't hold on to them. A state
+ * that has been evicted is rebuilt from the prefix like after a restart.
+ * 
+ * @author danielshiplett
+ */
+class UploadDigestEngine {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(UploadDigestEngine.class);
+
+    /**
+     * Feeds the bytes of a single chunk into the digest.
+     */
+    interface ChunkSource {
+        void digest(Upload u, int flowChunkNumber, MessageDigest md)
+                throws IOException;
+    }
+
+    private final Cache<String, DigestState> states;
+
+    private final Cache<String, Boolean> finished;
+
+    private final ChunkSource source;
+
+    UploadDigestEngine(ChunkSource source, long maximumSize,
+            long expireAfterAccessSeconds) {
+        this.source = source;
+        this.states = newCache(maximumSize, expireAfterAccessSeconds);
+        this.finished = newCache(maximumSize, expireAfterAccessSeconds);
+    }
+
+    private static <V> Cache<String, V> newCache(long maximumSize,
+            long expireAfterAccessSeconds) {
+        return CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccessSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Hash as much of the contiguous prefix of received chunks as we can.
+     * 
+     * @param u
+     *            the Upload as it stands after the last chunk was recorded
+     * 
+     * @throws IOException
+     */
+    void advance(Upload u) throws IOException {
+        /*
+         * Records from before the state was tracked don't have one at all.
+         */
+        advance(u, u.getState() == null
+                || u.getState() == UploadState.RECEIVING);
+    }
+
+    /**
+     * @param u
+     * @param start
+     *            start a new state if there isn't one
+     * 
+     * @return the state or null if there isn't one
+     * 
+     * @throws IOException
+     */
+    private DigestState advance(Upload u, boolean start) throws IOException {
+        if (finished.getIfPresent(u.getId()) != null) {
+            return null;
+        }
+
+        DigestState state = start ? states.asMap().computeIfAbsent(u.getId(),
+                id -> new DigestState()) : states.getIfPresent(u.getId());
+
+        if (state == null) {
+            return null;
+        }
+
+        synchronized (state) {
+            while (state.nextChunk <= u.getTotalChunks()
+                    && ChunkBitmap.isSet(u.getChunkBits(), state.nextChunk)) {
+                source.digest(u, state.nextChunk, state.md);
+                state.nextChunk++;
+            }
+        }
+
+        return state;
+    }
+
+    /**
+     * Finish the digest for a complete upload and forget about it.
+     * 
+     * @param u
+     *            the complete Upload
+     * 
+     * @return the MD5 as hex or null if the prefix couldn't be completed
+     * 
+     * @throws IOException
+     */
+    String finish(Upload u) throws IOException {
+        DigestState state = advance(u, true);
+
+        discard(u.getId());
+
+        if (state == null) {
+            return null;
+        }
+
+        synchronized (state) {
+            if (state.nextChunk <= u.getTotalChunks()) {
+                LOG.warn("digest incomplete for {}: stopped at chunk {}",
+                        u.getId(), state.nextChunk);
+                return null;
+            }
+
+            return Hex.encodeHexString(state.md.digest());
+        }
+    }
+
+    /**
+     * Drop the running digest for an upload that won't be finished.
+     * 
+     * @param flowIdentifier
+     */
+    void discard(String flowIdentifier) {
+        finished.put(flowIdentifier, Boolean.TRUE);
+        states.invalidate(flowIdentifier);
+    }
+
+    /**
+     * The running digest and the next chunk it is waiting for.
+     */
+    private static class DigestState {
+        private final MessageDigest md;
+
+        private int nextChunk = 1;
+
+        DigestState() {
+            try {
+                md = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.brewman.upload.service.impl;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+
+/**
+ * A fixed set of locks that the uploads are spread over by flowIdentifier.
+ * Chunks of the same upload always land on the same lock while independent
+ * uploads almost never share one, so they no longer queue behind each other.
+ * 
+ * Every acquisition that has to wait is counted and timed so the contention
+ * can be watched in the metrics.
+ * 
+ * @author danielshiplett
+ */
+class UploadLockStripes {
+
+    private final Lock[] stripes;
+
+    private final Counter contended = new Counter();
+
+    private final Timer waits = new Timer();
+
+    UploadLockStripes(int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("need at least one lock stripe");
+        }
+
+        stripes = new Lock[count];
+
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquire the lock for this upload. The caller must unlock the returned
+     * lock in a finally block.
+     * 
+     * @param flowIdentifier
+     * 
+     * @return the acquired lock
+     */
+    Lock lock(String flowIdentifier) {
+        Lock lock = stripes[Math.floorMod(flowIdentifier.hashCode(),
+                stripes.length)];
+
+        if (!lock.tryLock()) {
+            contended.inc();
+
+            Timer.Context context = waits.time();
+
+            try {
+                lock.lock();
+            } finally {
+                context.stop();
+            }
+        }
+
+        return lock;
+    }
+
+    /**
+     * @return how many acquisitions had to wait for another thread
+     */
+    Counter getContended() {
+        return contended;
+    }
+
+    /**
+     * @return how long the acquisitions that had to wait actually waited
+     */
+    Timer getWaits() {
+        return waits;
+    }
+}
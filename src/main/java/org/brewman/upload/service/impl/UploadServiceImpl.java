@@ -1,333 +1,1508 @@
 package org.brewman.upload.service.impl;
 
-import java.io.BufferedInputStream;
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.io.FileExistsException;
+import org.apache.commons.io.IOUtils;
+import org.brewman.upload.domain.StorageMode;
 import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadBlob;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.repository.ChunkReceipt;
+import org.brewman.upload.repository.UploadBlobRepository;
 import org.brewman.upload.repository.UploadRepository;
+import org.brewman.upload.service.ChunkBatchResult;
+import org.brewman.upload.service.ChunkOutOfRangeException;
+import org.brewman.upload.service.ChunkSink;
+import org.brewman.upload.service.UploadContent;
+import org.brewman.upload.service.UploadMetrics;
+import org.brewman.upload.service.UploadMetrics.Phase;
 import org.brewman.upload.service.UploadService;
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.brewman.upload.storage.ChunkWriter;
+import org.brewman.upload.storage.StorageEngine;
+import org.brewman.upload.storage.StorageStat;
+import org.joda.time.DateTime;
 import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.context.ApplicationListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.MongoMappingEvent;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
-import com.codahale.metrics.annotation.Timed;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
- * A very simple implementation of the UploadService.
+ * The implementation of the UploadService behind the flow.js endpoints.
  * 
- * This version will just store the chunks and the file locally. Nothing else is
- * done in terms of tracking who uploaded it or making it available for
- * download.
+ * Chunks go to a pluggable StorageEngine, either into their own files or
+ * straight into their slot of a preallocated file, and are recorded against
+ * the Upload with atomic updates so any node can take any chunk. The MD5SUM is
+ * worked out as the chunks arrive. Once the last one is in the upload is
+ * finalized, on its own executor where there is one. Identical content can be
+ * stored once, and space is reserved up front so the volume doesn't fill up
+ * part way through an upload. Uploads that are abandoned are reaped, and
+ * finalizations that stall are taken over.
  * 
  * @author danielshiplett
  */
 @Service
-public class UploadServiceImpl implements UploadService, InitializingBean {
+public class UploadServiceImpl implements UploadService, InitializingBean,
+        ApplicationListener<MongoMappingEvent<?>> {
 
     private static final Logger LOG = LoggerFactory
             .getLogger(UploadServiceImpl.class);
 
+    private static final int DIGEST_BUFFER_SIZE = 64 * 1024;
+
+    private static final int DEFAULT_LOCK_STRIPES = 256;
+
+    private static final long DEFAULT_CACHE_SIZE = 10000;
+
+    private static final long DEFAULT_CACHE_TTL_SECONDS = 30;
+
+    private static final long DIGEST_TTL_SECONDS = 3600;
+
+    private static final ThreadFactory REAPER_THREADS = new ThreadFactoryBuilder()
+            .setNameFormat("upload-reaper-%d").setDaemon(true).build();
+
     @Inject
     private UploadRepository uploadRepository;
 
-    private String baseLocation = null;
+    @Inject
+    private UploadBlobRepository uploadBlobRepository;
+
+    @Autowired(required = false)
+    private MetricRegistry metricRegistry;
+
+    @Autowired(required = false)
+    private UploadMetrics uploadMetrics = new UploadMetrics(
+            new MetricRegistry());
+
+    @Autowired(required = false)
+    @Qualifier("uploadFinalizationExecutor")
+    private Executor finalizationExecutor;
+
+    private StorageEngine storageEngine = null;
+
+    private boolean streamingWrites = true;
+
+    private boolean deduplication = false;
+
+    private StorageMode storageMode = StorageMode.CHUNKED;
+
+    private int reaperMaxAgeMinutes = 0;
+
+    private int reaperConcurrency = 1;
+
+    private int reaperBatchSize = 500;
+
+    private ExecutorService reaperPool;
+
+    private int finalizationTimeoutMinutes = 0;
+
+    private final UploadDigestEngine digestEngine = new UploadDigestEngine(
+            this::digestChunk, DEFAULT_CACHE_SIZE, DIGEST_TTL_SECONDS);
+
+    private UploadLockStripes uploadLocks = new UploadLockStripes(
+            DEFAULT_LOCK_STRIPES);
+
+    private UploadStateCache stateCache = new UploadStateCache(
+            DEFAULT_CACHE_SIZE, DEFAULT_CACHE_TTL_SECONDS);
+
+    private UploadSpaceReservations spaceReservations = new UploadSpaceReservations(
+            this::getUsableSpace, 0);
 
     @Override
     public void afterPropertiesSet() throws Exception {
+        /**
+         * Publish the lock contention so we can see if the stripes are
+         * enough.
+         */
+        if (metricRegistry != null) {
+            metricRegistry.register(MetricRegistry.name(
+                    UploadServiceImpl.class, "lock", "contended"),
+                    uploadLocks.getContended());
+            metricRegistry.register(MetricRegistry.name(
+                    UploadServiceImpl.class, "lock", "waits"),
+                    uploadLocks.getWaits());
+            stateCache.registerMetrics(metricRegistry,
+                    MetricRegistry.name(UploadServiceImpl.class, "cache"));
+            metricRegistry.register(MetricRegistry.name(
+                    UploadServiceImpl.class, "space", "reserved"),
+                    spaceReservations.getReservedGauge());
+        }
+
         /**
          * Our only property must be set.
          */
-        if (baseLocation == null) {
+        if (storageEngine == null) {
             return;
         }
 
         /**
-         * Create the base location and all parent paths.
+         * Get the storage ready, e.g. create the base location.
+         */
+        storageEngine.init();
+    }
+
+    /**
+     * Get the storage engine the uploads are kept in.
+     * 
+     * @return the storage engine
+     */
+    public StorageEngine getStorageEngine() {
+        return storageEngine;
+    }
+
+    /**
+     * Set the storage engine the uploads are kept in.
+     * 
+     * @param storageEngine
+     *            the storage engine
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withStorageEngine(StorageEngine storageEngine) {
+        this.storageEngine = storageEngine;
+        return this;
+    }
+
+    /**
+     * Should the chunks be streamed from the request straight into the chunk
+     * file?
+     * 
+     * @return true if streaming, false if each chunk is read onto the heap
+     *         first
+     */
+    public boolean isStreamingWrites() {
+        return streamingWrites;
+    }
+
+    /**
+     * Choose between streaming the chunks to disk with a FileChannel (constant
+     * memory per request) or reading each chunk into a byte[] first. The
+     * buffered path is only kept so the two can be benchmarked.
+     * 
+     * @param streamingWrites
+     *            true to stream, false to buffer
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withStreamingWrites(boolean streamingWrites) {
+        this.streamingWrites = streamingWrites;
+        return this;
+    }
+
+    /**
+     * Get the storage mode new uploads will be started with.
+     * 
+     * @return the storage mode
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Set the storage mode new uploads will be started with. Uploads already
+     * in progress keep the mode they were started with.
+     * 
+     * @param storageMode
+     *            the storage mode
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withStorageMode(StorageMode storageMode) {
+        this.storageMode = storageMode;
+        return this;
+    }
+
+    /**
+     * Set how many locks the uploads are striped over. Chunks of the same
+     * upload are serialized on one lock, independent uploads rarely share one.
+     * 
+     * @param lockStripes
+     *            the number of lock stripes
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withLockStripes(int lockStripes) {
+        this.uploadLocks = new UploadLockStripes(lockStripes);
+        return this;
+    }
+
+    /**
+     * Should uploads with the same content share one stored copy?
+     * 
+     * @return true if content is deduplicated
+     */
+    public boolean isDeduplication() {
+        return deduplication;
+    }
+
+    /**
+     * Keep one stored copy of each distinct content, keyed by MD5SUM, and let
+     * clients that already know the MD5SUM of stored content skip sending it.
+     * 
+     * This is off unless asked for. A client that presents a known MD5SUM and
+     * size gets its upload marked COMPLETE without sending any bytes, so it
+     * can claim content it never had. MD5 is also a weak key, two different
+     * contents can be made to share one.
+     * 
+     * @param deduplication
+     *            true to deduplicate
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withDeduplication(boolean deduplication) {
+        this.deduplication = deduplication;
+        return this;
+    }
+
+    /**
+     * Set the size and lifetime of the in-process cache of Upload state.
+     * 
+     * @param maximumSize
+     *            how many uploads to keep before evicting
+     * @param expireAfterWriteSeconds
+     *            how long an upload stays cached after this node last
+     *            changed it
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withStateCache(long maximumSize,
+            long expireAfterWriteSeconds) {
+        this.stateCache = new UploadStateCache(maximumSize,
+                expireAfterWriteSeconds);
+        return this;
+    }
+
+    /**
+     * Set how much space must be left free on the volume once every upload in
+     * progress has been stored. New uploads that would cut into it are
+     * refused.
+     * 
+     * @param minFreeBytes
+     *            the space to leave free in bytes
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withMinFreeSpace(long minFreeBytes) {
+        this.spaceReservations = new UploadSpaceReservations(
+                this::getUsableSpace, minFreeBytes);
+        return this;
+    }
+
+    /**
+     * Reap uploads that have been left unfinished.
+     * 
+     * @param maxAgeMinutes
+     *            how long an upload may go without a chunk, 0 to never reap
+     * @param concurrency
+     *            how many uploads have their storage deleted at once
+     * @param batchSize
+     *            how many uploads are removed in one go
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withReaper(int maxAgeMinutes, int concurrency,
+            int batchSize) {
+        this.reaperMaxAgeMinutes = maxAgeMinutes;
+        this.reaperConcurrency = concurrency;
+        this.reaperBatchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Finalize again any upload left FINALIZING for too long, as it would be
+     * after the node finalizing it went down.
+     * 
+     * @param timeoutMinutes
+     *            how long an upload may be FINALIZING, 0 to leave them be
+     * 
+     * @return this
+     */
+    public UploadServiceImpl withFinalizationTimeout(int timeoutMinutes) {
+        this.finalizationTimeoutMinutes = timeoutMinutes;
+        return this;
+    }
+
+    /**
+     * Keep the state cache in step with every Upload that is saved or deleted
+     * through the repositories, not just the ones saved here.
+     */
+    @Override
+    public void onApplicationEvent(MongoMappingEvent<?> event) {
+        if (event instanceof AfterSaveEvent
+                && event.getSource() instanceof Upload) {
+            stateCache.put((Upload) event.getSource());
+        } else if (event instanceof AfterDeleteEvent
+                && Upload.class.equals(((AfterDeleteEvent<?>) event).getType())) {
+            Object id = event.getDBObject() != null ? event.getDBObject().get(
+                    "_id") : null;
+
+            if (id instanceof String) {
+                stateCache.invalidate((String) id);
+            } else {
+                stateCache.invalidateAll();
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#getUpload(java.lang.String)
+     */
+    @Override
+    public Upload getUpload(String flowIdentifier) {
+        UUID uuid = UUID.fromString(flowIdentifier);
+
+        try (Timer.Context timer = uploadMetrics.time(Phase.METADATA_READ)) {
+            return stateCache.get(uuid.toString(), uploadRepository::findOne);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#saveChunk(java.lang.String,
+     * int, int, int, java.lang.String, int, long,
+     * org.springframework.web.multipart.MultipartFile)
+     */
+    @Override
+    public Upload saveChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize, MultipartFile file)
+            throws IOException {
+        try (InputStream in = file.getInputStream()) {
+            return saveChunk(flowIdentifier, flowChunkNumber, flowChunkSize,
+                    flowCurrentChunkSize, flowFilename, flowTotalChunks,
+                    flowTotalSize, in, file.getSize());
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#saveChunk(java.lang.String,
+     * int, int, int, java.lang.String, int, long, java.io.InputStream, long)
+     */
+    @Override
+    public Upload saveChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize, InputStream in, long size)
+            throws IOException {
+        Upload upload = prepareChunk(flowIdentifier, flowChunkNumber,
+                flowChunkSize, flowFilename, flowTotalChunks, flowTotalSize);
+
+        /*
+         * Check if the chunk has already been uploaded. It seems that this is
+         * normal case when you pause/resume. So just return the Upload as it
+         * currently stands.
+         */
+        if (ChunkBitmap.isSet(upload.getChunkBits(), flowChunkNumber)) {
+            LOG.warn("chunk already uploaded: {}", flowChunkNumber - 1);
+            return upload;
+        }
+
+        /*
+         * Add this chunk to the chunk directory and set the chunk list element
+         * to true.
          */
-        this.createBaseLocation();
+        try {
+            upload = saveChunkToDisk(upload, flowChunkNumber, in, size);
+        } catch (IOException e) {
+            LOG.error(e.getMessage(), e);
+            throw e;
+        }
+
+        return completeChunk(upload);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#openChunk(java.lang.String,
+     * int, int, int, java.lang.String, int, long)
+     */
+    @Override
+    public ChunkSink openChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize) throws IOException {
+        Upload upload = prepareChunk(flowIdentifier, flowChunkNumber,
+                flowChunkSize, flowFilename, flowTotalChunks, flowTotalSize);
+
+        if (ChunkBitmap.isSet(upload.getChunkBits(), flowChunkNumber)) {
+            LOG.warn("chunk already uploaded: {}", flowChunkNumber - 1);
+            return new StorageChunkSink(upload, flowChunkNumber, null,
+                    flowCurrentChunkSize);
+        }
+
+        return new StorageChunkSink(upload, flowChunkNumber, openChunkWriter(
+                upload, flowChunkNumber, flowCurrentChunkSize),
+                flowCurrentChunkSize);
+    }
+
+    /**
+     * Get the Upload for a chunk that is about to be saved, check it still
+     * matches what flow.js is sending and that the chunk is one of its chunks.
+     * 
+     * @param flowIdentifier
+     * @param flowChunkNumber
+     * @param flowChunkSize
+     * @param flowFilename
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * 
+     * @return
+     * 
+     * @throws IOException
+     *             if the upload hasn't been started, has changed or doesn't
+     *             have this chunk
+     */
+    private Upload prepareChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, String flowFilename, int flowTotalChunks,
+            long flowTotalSize) throws IOException {
+        Upload upload = prepareUpload(flowIdentifier, flowChunkSize,
+                flowFilename, flowTotalChunks, flowTotalSize);
+
+        checkChunkNumber(flowChunkNumber, flowTotalChunks);
+
+        return upload;
+    }
+
+    /**
+     * Reject a chunk number that isn't one of the upload's chunks before it
+     * gets anywhere near the bitmap or the storage.
+     * 
+     * @param flowChunkNumber
+     * @param flowTotalChunks
+     * 
+     * @throws ChunkOutOfRangeException
+     */
+    private static void checkChunkNumber(int flowChunkNumber,
+            int flowTotalChunks) throws ChunkOutOfRangeException {
+        if (flowChunkNumber < 1 || flowChunkNumber > flowTotalChunks) {
+            throw new ChunkOutOfRangeException(String.format(
+                    "chunk number out of range: %d of %d", flowChunkNumber,
+                    flowTotalChunks));
+        }
     }
 
     /**
-     * Get the base location for the file storage.
+     * Get the Upload for chunks that are about to be saved and check it still
+     * matches what flow.js is sending.
+     * 
+     * @param flowIdentifier
+     * @param flowChunkSize
+     * @param flowFilename
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * 
+     * @return
      * 
-     * @return the base location
+     * @throws IOException
+     *             if the upload hasn't been started or has changed
      */
-    public String getBaseLocation() {
-        return baseLocation;
+    private Upload prepareUpload(String flowIdentifier, int flowChunkSize,
+            String flowFilename, int flowTotalChunks, long flowTotalSize)
+            throws IOException {
+        /*
+         * Get the Upload to see if we have already started this upload. We will
+         * attach the next chuck if there is one or create a new entry
+         * otherwise.
+         */
+        Upload upload = this.getUpload(flowIdentifier);
+
+        /*
+         * Force the creation of the upload record to be handled in the
+         * testChunk function.
+         */
+        if (upload == null) {
+            throw new IOException("Upload record does not exist.");
+        }
+
+        /*
+         * Test that the file hasn't changed since the last chunk test.
+         */
+        testFlowUnchanged(upload, flowChunkSize, flowFilename,
+                flowTotalChunks, flowTotalSize);
+
+        return upload;
+    }
+
+    /**
+     * Everything that happens once new chunks are recorded against the Upload.
+     * 
+     * @param upload
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    private Upload completeChunk(Upload upload) throws IOException {
+        /*
+         * What has been written now counts against the volume rather than the
+         * reservation. Only shrinks a reservation this node still holds.
+         */
+        if (upload.getState() == UploadState.RECEIVING) {
+            spaceReservations.update(upload.getId(), requiredSpace(upload));
+        }
+
+        /*
+         * Hash the chunk while it is still in the page cache if it extends
+         * the contiguous prefix.
+         */
+        try (Timer.Context timer = uploadMetrics.time(Phase.DIGEST)) {
+            digestEngine.advance(upload);
+        }
+
+        /*
+         * Check to see if the upload is complete. If all the chunks are in then
+         * it is and we should go ahead and process the file.
+         */
+        if (uploadComplete(upload)) {
+            upload = finishUpload(upload);
+        }
+
+        LOG.debug("upload: {}", upload);
+
+        return upload;
+    }
+
+    /**
+     * Writes a chunk as it arrives and records it once it is all there.
+     */
+    private class StorageChunkSink implements ChunkSink {
+
+        private final Upload upload;
+
+        private final int flowChunkNumber;
+
+        private final ChunkWriter out;
+
+        private final long size;
+
+        private long written;
+
+        private long writeNanos;
+
+        private final UploadMetrics.InFlight inFlight;
+
+        StorageChunkSink(Upload upload, int flowChunkNumber, ChunkWriter out,
+                long size) {
+            this.upload = upload;
+            this.flowChunkNumber = flowChunkNumber;
+            this.out = out;
+            this.size = size;
+            this.inFlight = uploadMetrics.startChunk(upload.getId());
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            if (written + src.remaining() > size) {
+                throw new IOException(String.format(
+                        "chunk too long: expected %d bytes", size));
+            }
+
+            written += src.remaining();
+
+            if (out == null) {
+                src.position(src.limit());
+                return;
+            }
+
+            /*
+             * The data arrives a piece at a time, so only the writes count
+             * towards the disk write phase, not the waits between them.
+             */
+            long start = System.nanoTime();
+            out.write(src);
+            writeNanos += System.nanoTime() - start;
+        }
+
+        @Override
+        public Upload commit() throws IOException {
+            try {
+                if (out == null) {
+                    return upload;
+                }
+
+                long start = System.nanoTime();
+                out.close();
+                uploadMetrics.update(Phase.DISK_WRITE, writeNanos
+                        + System.nanoTime() - start);
+
+                if (written != size) {
+                    throw new IOException(String.format(
+                            "chunk truncated: expected %d bytes but got %d",
+                            size, written));
+                }
+
+                uploadMetrics.chunkWritten(written);
+            } finally {
+                inFlight.close();
+            }
+
+            return completeChunk(updateUploadForChunk(upload, flowChunkNumber));
+        }
+
+        @Override
+        public void abort() {
+            inFlight.close();
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.brewman.upload.service.UploadService#saveChunks(java.lang.String,
+     * int, java.lang.String, int, long, java.util.List, java.util.List)
+     */
+    @Override
+    public ChunkBatchResult saveChunks(String flowIdentifier,
+            int flowChunkSize, String flowFilename, int flowTotalChunks,
+            long flowTotalSize, List<Integer> flowChunkNumbers,
+            List<MultipartFile> files) throws IOException {
+        if (flowChunkNumbers.size() != files.size()) {
+            throw new IOException(
+                    "Every chunk in the batch needs a chunk number.");
+        }
+
+        Upload upload = prepareUpload(flowIdentifier, flowChunkSize,
+                flowFilename, flowTotalChunks, flowTotalSize);
+
+        ChunkBatchResult result = new ChunkBatchResult();
+
+        /*
+         * Write every chunk we don't already have. A bad chunk is reported and
+         * skipped so the rest of the batch still lands. Each chunk gets its
+         * own writer from the storage engine, even for a positional upload,
+         * so every one is held to the length of its slot.
+         */
+        Set<Integer> written = new LinkedHashSet<>();
+
+        for (int i = 0; i < files.size(); i++) {
+            int flowChunkNumber = flowChunkNumbers.get(i);
+
+            if (flowChunkNumber < 1
+                    || flowChunkNumber > upload.getTotalChunks()) {
+                result.add(flowChunkNumber, ChunkBatchResult.Status.FAILED,
+                        "chunk number out of range");
+            } else if (ChunkBitmap.isSet(upload.getChunkBits(),
+                    flowChunkNumber) || written.contains(flowChunkNumber)) {
+                result.add(flowChunkNumber, ChunkBatchResult.Status.DUPLICATE,
+                        null);
+            } else {
+                MultipartFile file = files.get(i);
+
+                try (InputStream in = file.getInputStream()) {
+                    writeChunkToDisk(upload, flowChunkNumber, in,
+                            file.getSize());
+                    written.add(flowChunkNumber);
+                } catch (IOException e) {
+                    LOG.error(e.getMessage(), e);
+                    result.add(flowChunkNumber,
+                            ChunkBatchResult.Status.FAILED, e.getMessage());
+                }
+            }
+        }
+
+        /*
+         * One update of the Upload record for the whole batch.
+         */
+        ChunkReceipt receipt;
+
+        try (Timer.Context timer = uploadMetrics.time(Phase.METADATA_WRITE)) {
+            receipt = uploadRepository.recordChunks(upload.getId(), written);
+        }
+
+        for (int flowChunkNumber : written) {
+            boolean recorded = receipt.getRecorded().contains(flowChunkNumber);
+
+            result.add(flowChunkNumber,
+                    recorded ? ChunkBatchResult.Status.SAVED
+                            : ChunkBatchResult.Status.DUPLICATE, null);
+        }
+
+        upload = receipt.getUpload() != null ? stateCache
+                .applyChunkReceipt(receipt.getUpload()) : getUpload(upload
+                .getId());
+
+        result.setUpload(completeChunk(upload));
+
+        return result;
+    }
+
+    /**
+     * Move the upload to FINALIZING and hand the rest of the work to the
+     * finalization executor so the last chunk request can return straight
+     * away. Only one thread (on any node) wins the move. Others that also saw
+     * the last chunk land get the Upload as it stands.
+     * 
+     * Without an executor (the fast profile) the upload is finalized inline.
+     * 
+     * @param upload
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    private Upload finishUpload(Upload upload) throws IOException {
+        Upload finalizing = uploadRepository.startFinalizing(upload.getId());
+
+        if (finalizing == null) {
+            LOG.trace("flow already finalizing");
+            return getUpload(upload.getId());
+        }
+
+        stateCache.put(finalizing);
+
+        LOG.trace("flow complete");
+
+        return dispatchFinalization(finalizing.getId(), finalizing);
+    }
+
+    /**
+     * Finalize the upload on the finalization executor, or inline without
+     * one. When the executor is saturated it runs the work on this thread
+     * instead, so if it is already done hand back the finished Upload rather
+     * than the FINALIZING one.
+     * 
+     * @param id
+     * @param finalizing
+     *            the Upload to return while finalization goes on
+     * 
+     * @return
+     */
+    private Upload dispatchFinalization(String id, Upload finalizing) {
+        if (finalizationExecutor == null) {
+            return finalizeUpload(id);
+        }
+
+        CompletableFuture<Upload> finalized = CompletableFuture.supplyAsync(
+                () -> finalizeUpload(id), finalizationExecutor);
+
+        return finalized.isDone() ? finalized.join() : finalizing;
+    }
+
+    /**
+     * Turn the chunks into the final file, set the MD5SUM and mark the upload
+     * COMPLETE. Anything going wrong leaves it FAILED. An upload taken over
+     * after a crash may already have its final file, in which case that is
+     * kept and only the rest is done again.
+     * 
+     * @param flowIdentifier
+     * 
+     * @return the Upload as it ended up
+     */
+    private Upload finalizeUpload(String flowIdentifier) {
+        try {
+            Upload upload = uploadRepository.findOne(flowIdentifier);
+
+            /*
+             * Finish the running digest before the chunks are merged away.
+             */
+            String md5 = null;
+
+            if (!isCommitted(upload)) {
+                try (Timer.Context timer = uploadMetrics.time(Phase.DIGEST)) {
+                    md5 = digestEngine.finish(upload);
+                }
+
+                /*
+                 * Positional uploads are already in one piece. Chunked uploads
+                 * still need all their chunks concatenated.
+                 */
+                try (Timer.Context timer = uploadMetrics.time(Phase.MERGE)) {
+                    storageEngine.commit(upload);
+                }
+            }
+
+            /*
+             * Set the MD5SUM. Only fall back to reading the whole file again
+             * if the running digest couldn't be finished.
+             */
+            if (md5 == null) {
+                try (Timer.Context timer = uploadMetrics.time(Phase.DIGEST)) {
+                    md5 = calculateMd5Sum(upload.getId());
+                }
+            }
+
+            upload.setMd5sum(md5);
+
+            if (deduplication) {
+                shareContent(upload);
+            }
+
+            /*
+             * Record the completed time.
+             */
+            upload.setCompletedAt(new LocalDate());
+            upload.setState(UploadState.COMPLETE);
+
+            upload = uploadRepository.save(upload);
+
+            LOG.trace("upload: {}", upload);
+
+            return upload;
+        } catch (IOException | RuntimeException e) {
+            LOG.error("finalization failed for {}: {}", flowIdentifier,
+                    e.getMessage(), e);
+            digestEngine.discard(flowIdentifier);
+            uploadRepository.markFailed(flowIdentifier);
+            stateCache.invalidate(flowIdentifier);
+
+            return getUpload(flowIdentifier);
+        } finally {
+            spaceReservations.release(flowIdentifier);
+        }
+    }
+
+    /**
+     * Is the final file of the upload already in place? The commit moves it
+     * there in one go once it is whole, so if it is there at its full size
+     * the commit is done.
+     * 
+     * @param upload
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    private boolean isCommitted(Upload upload) throws IOException {
+        StorageStat stat = storageEngine.stat(upload.getId());
+
+        return stat.isComplete() && upload.getTotalSize() != null
+                && stat.getSize() == upload.getTotalSize();
+    }
+
+    /**
+     * Finalize again the uploads that have been FINALIZING for longer than
+     * the configured timeout. The first run comes shortly after startup to
+     * pick up whatever a crash left behind.
+     */
+    @Scheduled(initialDelay = 60000,
+            fixedDelayString = "${upload.finalization.recoveryIntervalMillis:300000}")
+    public void recoverStalledFinalizations() {
+        if (storageEngine == null || finalizationTimeoutMinutes <= 0) {
+            return;
+        }
+
+        recoverStalledFinalizations(DateTime.now().minusMinutes(
+                finalizationTimeoutMinutes));
+    }
+
+    /**
+     * Finalize again the uploads that have been FINALIZING since before the
+     * cutoff. Each one is claimed first so only one node takes it over.
+     * 
+     * @param staleBefore
+     *            the cutoff
+     * 
+     * @return the number of uploads taken over
+     */
+    public int recoverStalledFinalizations(DateTime staleBefore) {
+        int recovered = 0;
+        Upload stalled;
+
+        while ((stalled = uploadRepository
+                .claimStalledFinalizing(staleBefore)) != null) {
+            LOG.warn("finalizing stalled upload again: {}", stalled.getId());
+            stateCache.invalidate(stalled.getId());
+            dispatchFinalization(stalled.getId(), stalled);
+            recovered++;
+        }
+
+        return recovered;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#testChunk(java.lang.String,
+     * int, int, int, java.lang.String, int, long)
+     */
+    @Override
+    public boolean testChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize) throws IOException {
+        return testChunk(flowIdentifier, flowChunkNumber, flowChunkSize,
+                flowCurrentChunkSize, flowFilename, flowTotalChunks,
+                flowTotalSize, null);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#testChunk(java.lang.String,
+     * int, int, int, java.lang.String, int, long, java.lang.String)
+     */
+    @Override
+    public boolean testChunk(String flowIdentifier, int flowChunkNumber,
+            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
+            int flowTotalChunks, long flowTotalSize, String flowFileMd5)
+            throws IOException {
+        /*
+         * Confirm that the flowIdentifier is an UUID and use it from here on
+         * out.
+         */
+        UUID uuid = UUID.fromString(flowIdentifier);
+
+        checkChunkNumber(flowChunkNumber, flowTotalChunks);
+
+        /*
+         * Get the current UUID to see if we have already started this upload.
+         * Will attach the next chuck if there is one or create a new entry
+         * otherwise.
+         */
+        Upload upload = getUpload(uuid.toString());
+
+        /*
+         * Check that the total size isn't too large!
+         * 
+         * Cap it at 4GB for now.
+         */
+        long maxSize = 4l * 1024l * 1024l * 1024l;
+        if (flowTotalSize > maxSize) {
+            LOG.error("flowTotalSize: {} -- ", flowTotalSize, maxSize);
+            throw new IOException("file to large");
+        }
+
+        if (upload == null) {
+            /*
+             * Several chunks are tested at once so make sure only one of them
+             * creates the record.
+             */
+            Lock lock = uploadLocks.lock(uuid.toString());
+
+            try {
+                upload = uploadRepository.findOne(uuid.toString());
+
+                if (upload == null) {
+                    upload = claimKnownContent(uuid, flowFileMd5,
+                            flowChunkSize, flowFilename, flowTotalChunks,
+                            flowTotalSize);
+                }
+
+                if (upload == null) {
+                    upload = createUpload(uuid, flowChunkSize, flowFilename,
+                            flowTotalChunks, flowTotalSize);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+         * Test that the file hasn't changed since the last chunk test.
+         */
+        testFlowUnchanged(upload, flowChunkSize, flowFilename,
+                flowTotalChunks, flowTotalSize);
+
+        /*
+         * Check if the chunk has already been uploaded.
+         */
+        if (ChunkBitmap.isSet(upload.getChunkBits(), flowChunkNumber)) {
+            LOG.warn("chunk already uploaded: {}", flowChunkNumber - 1);
+            return true;
+        }
+
+        /*
+         * We're all good. Let them send the chunk.
+         */
+        return false;
+    }
+
+    /**
+     * Create the Upload record for a new flow along with its storage on disk.
+     * 
+     * @param uuid
+     * @param flowChunkSize
+     * @param flowFilename
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * 
+     * @return the saved Upload
+     * 
+     * @throws IOException
+     *             if the chunk count doesn't add up or the upload can't be
+     *             stored
+     */
+    private Upload createUpload(UUID uuid, int flowChunkSize,
+            String flowFilename, int flowTotalChunks, long flowTotalSize)
+            throws IOException {
+        /*
+         * Every chunk slot is worked out from these, so they have to agree or
+         * the last slots end up with a negative length.
+         */
+        if (!isChunkCountConsistent(flowChunkSize, flowTotalChunks,
+                flowTotalSize)) {
+            throw new IOException(String.format(
+                    "inconsistent chunk count: %d chunks of %d bytes for %d "
+                            + "bytes", flowTotalChunks, flowChunkSize,
+                    flowTotalSize));
+        }
+
+        /*
+         * Entry didn't exist. Check to make sure we haven't already created
+         * a file with the same UUID (highly unlikely).
+         */
+        if (testFileExists(uuid)) {
+            throw new FileExistsException("file already exists");
+        }
+
+        /*
+         * Create the new Upload entry and leave it as incomplete.
+         */
+        Upload upload = new Upload();
+
+        upload.setId(uuid.toString());
+        upload.setOriginalName(flowFilename);
+        upload.setUploadedAt(new LocalDate());
+        upload.setLastActivity(new DateTime());
+        upload.setUploadComplete(false);
+        upload.setState(UploadState.RECEIVING);
+        upload.setTotalChunks(flowTotalChunks);
+        upload.setTotalSize(flowTotalSize);
+        upload.setChunkSize(flowChunkSize);
+        upload.setStorageMode(storageMode);
+
+        /*
+         * Create the chunk bitmap with nothing received.
+         */
+        upload.setChunkBits(ChunkBitmap.create(flowTotalChunks));
+        upload.setReceivedChunks(0);
+
+        /*
+         * Turn the upload away now if there's no room for it, not once the
+         * client has sent most of it.
+         */
+        spaceReservations.reserve(upload.getId(), requiredSpace(upload));
+
+        try {
+            /*
+             * Either preallocate the target file for the chunks to be written
+             * into or create a directory to store the chunks in.
+             */
+            storageEngine.create(upload);
+
+            try (Timer.Context timer = uploadMetrics
+                    .time(Phase.METADATA_WRITE)) {
+                return uploadRepository.save(upload);
+            }
+        } catch (IOException | RuntimeException e) {
+            spaceReservations.release(upload.getId());
+            throw e;
+        }
+    }
+
+    /**
+     * Does the chunk count match the size the way flow.js works it out? It
+     * rounds down and lets the last chunk take the rest, or rounds up with
+     * forceChunkSize, and never goes below one chunk.
+     * 
+     * @param flowChunkSize
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * 
+     * @return
+     */
+    private static boolean isChunkCountConsistent(int flowChunkSize,
+            int flowTotalChunks, long flowTotalSize) {
+        if (flowChunkSize <= 0 || flowTotalSize < 0) {
+            return false;
+        }
+
+        long down = Math.max(1, flowTotalSize / flowChunkSize);
+        long up = Math.max(1, (flowTotalSize + flowChunkSize - 1)
+                / flowChunkSize);
+
+        return flowTotalChunks == down || flowTotalChunks == up;
+    }
+
+    /**
+     * The space an upload still needs: whatever is left to be received and,
+     * for chunked uploads, a second copy for the merged file.
+     * 
+     * @param upload
+     * 
+     * @return the space needed in bytes
+     */
+    private static long requiredSpace(Upload upload) {
+        if (upload.getTotalSize() == null) {
+            return 0;
+        }
+
+        long total = upload.getTotalSize();
+        long received = 0;
+
+        if (upload.getReceivedChunks() != null
+                && upload.getChunkSize() != null) {
+            received = Math.min(total, (long) upload.getReceivedChunks()
+                    * upload.getChunkSize());
+        }
+
+        if (upload.getStorageMode() == StorageMode.POSITIONAL) {
+            return total - received;
+        }
+
+        return 2 * total - received;
+    }
+
+    /**
+     * The usable space on the storage.
+     * 
+     * @return the space in bytes
+     * 
+     * @throws IOException
+     */
+    private long getUsableSpace() throws IOException {
+        return storageEngine.getUsableSpace();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#getAvailableIdentifier()
+     */
+    @Override
+    public String getAvailableIdentifier() {
+        return getAvailableUUID().toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.brewman.upload.service.UploadService#getAvailableIdentifier(java.lang
+     * .String, java.lang.String, int, int, long)
+     */
+    @Override
+    public String getAvailableIdentifier(String flowFileMd5,
+            String flowFilename, int flowChunkSize, int flowTotalChunks,
+            long flowTotalSize) throws IOException {
+        UUID uuid = getAvailableUUID();
+
+        claimKnownContent(uuid, flowFileMd5, flowChunkSize, flowFilename,
+                flowTotalChunks, flowTotalSize);
+
+        return uuid.toString();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.brewman.upload.service.UploadService#deleteUpload(java.lang.String)
+     */
+    @Override
+    public void deleteUpload(String flowIdentifier) throws IOException {
+        Upload upload = uploadRepository.findOne(flowIdentifier);
+
+        if (upload == null) {
+            return;
+        }
+
+        releaseStorage(upload);
+        uploadRepository.delete(flowIdentifier);
+    }
+
+    /**
+     * Remove uploads that were never finished and have had no chunk for the
+     * configured maximum age, along with their chunks.
+     */
+    @Scheduled(initialDelayString = "${upload.reaper.intervalMillis:900000}",
+            fixedDelayString = "${upload.reaper.intervalMillis:900000}")
+    public void reapAbandonedUploads() {
+        if (storageEngine == null || reaperMaxAgeMinutes <= 0) {
+            return;
+        }
+
+        reapAbandonedUploads(DateTime.now().minusMinutes(reaperMaxAgeMinutes));
+    }
+
+    /**
+     * Remove uploads that were never finished and have had no chunk since the
+     * cutoff.
+     * 
+     * The records go first, in bulk, so a client that comes back finds its
+     * upload gone rather than half deleted. Their storage is then deleted on
+     * a small pool so a large backlog can't swamp the disks.
+     * 
+     * @param staleBefore
+     *            the cutoff
+     * 
+     * @return the number of uploads removed
+     */
+    public int reapAbandonedUploads(DateTime staleBefore) {
+        long start = System.nanoTime();
+        int reaped = 0;
+        long reclaimed = 0;
+
+        ExecutorService pool = getReaperPool();
+        boolean more = true;
+
+        while (more) {
+            List<Upload> batch = uploadRepository.findAbandoned(staleBefore,
+                    reaperBatchSize);
+
+            if (batch.isEmpty()) {
+                break;
+            }
+
+            List<String> ids = batch.stream().map(Upload::getId)
+                    .collect(Collectors.toList());
+            Set<String> removed = new HashSet<>(
+                    uploadRepository.removeAbandoned(ids, staleBefore));
+
+            List<CompletableFuture<Long>> deletes = batch
+                    .stream()
+                    .filter(upload -> removed.contains(upload.getId()))
+                    .map(upload -> CompletableFuture.supplyAsync(
+                            () -> releaseAbandoned(upload), pool))
+                    .collect(Collectors.toList());
+
+            for (CompletableFuture<Long> delete : deletes) {
+                reclaimed += delete.join();
+            }
+
+            reaped += removed.size();
+            more = batch.size() == reaperBatchSize && !removed.isEmpty();
+        }
+
+        long elapsed = System.nanoTime() - start;
+
+        if (metricRegistry != null) {
+            metricRegistry.timer(
+                    MetricRegistry.name(UploadServiceImpl.class, "reaper",
+                            "run")).update(elapsed, TimeUnit.NANOSECONDS);
+            metricRegistry.counter(
+                    MetricRegistry.name(UploadServiceImpl.class, "reaper",
+                            "uploads")).inc(reaped);
+            metricRegistry.counter(
+                    MetricRegistry.name(UploadServiceImpl.class, "reaper",
+                            "reclaimedBytes")).inc(reclaimed);
+        }
+
+        if (reaped > 0) {
+            LOG.info("Reaped {} abandoned uploads, reclaimed {} bytes in {} ms",
+                    reaped, reclaimed, TimeUnit.NANOSECONDS.toMillis(elapsed));
+        }
+
+        return reaped;
     }
 
     /**
-     * Set the base location for the file storage.
+     * The pool the reaper deletes storage on. It is made on the first run and
+     * kept for the next, its threads go away while it is idle.
      * 
-     * @param baseLocation
-     *            the base location
-     * 
-     * @return this
+     * @return
      */
-    public UploadServiceImpl withBaseLocation(String baseLocation) {
-        this.baseLocation = baseLocation;
-        return this;
+    private synchronized ExecutorService getReaperPool() {
+        if (reaperPool == null) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(reaperConcurrency,
+                    reaperConcurrency, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), REAPER_THREADS);
+            pool.allowCoreThreadTimeOut(true);
+            reaperPool = pool;
+        }
+
+        return reaperPool;
     }
 
     /**
-     * If the base location doesn't exist on disk, then go ahead and create it
-     * creating any parent directories as needed.
+     * Delete the storage of a reaped upload. A failure is logged and left for
+     * the storage to be cleaned up by hand, the record is already gone.
      * 
-     * @throws IOException
+     * @param upload
+     * 
+     * @return the number of bytes freed
      */
-    private synchronized void createBaseLocation() throws IOException {
-        createDirectory(baseLocation);
+    private long releaseAbandoned(Upload upload) {
+        try {
+            return releaseStorage(upload);
+        } catch (IOException e) {
+            LOG.warn("Could not delete storage of abandoned upload {}: {}",
+                    upload.getId(), e.getMessage());
+            return 0;
+        }
     }
 
     /**
-     * Create the named directory and any parent directories.
+     * Drop everything held for an upload other than its record. Shared content
+     * goes with its last reference, anything else was only ever stored for
+     * this upload.
      * 
-     * @param directoryPath
-     *            the directory path to create
+     * @param upload
+     * 
+     * @return the number of bytes freed
      * 
      * @throws IOException
      */
-    private synchronized void createDirectory(String directoryPath)
-            throws IOException {
-        File dir = new File(directoryPath);
+    private long releaseStorage(Upload upload) throws IOException {
+        digestEngine.discard(upload.getId());
+        spaceReservations.release(upload.getId());
 
-        if (!dir.exists()) {
-            try {
-                dir.mkdirs();
-                return;
-            } catch (SecurityException e) {
-                LOG.error(e.getMessage(), e);
-                throw new IOException(e);
-            }
-        } else {
-            if (!dir.isDirectory()) {
-                /**
-                 * It exists but is a file?
-                 */
-                throw new IOException(String.format(
-                        "File name exists and is not a directory: %s",
-                        directoryPath));
-            }
+        if (upload.getBlobId() != null) {
+            UploadBlob released = uploadBlobRepository.release(upload
+                    .getBlobId());
+
+            return released != null ? storageEngine.delete(released
+                    .getStorageId()) : 0;
         }
-    }
 
-    /*
-     * (non-Javadoc)
-     * 
-     * @see org.brewman.upload.service.UploadService#getUpload(java.lang.String)
-     */
-    @Override
-    public Upload getUpload(String flowIdentifier) {
-        UUID uuid = UUID.fromString(flowIdentifier);
-        return uploadRepository.findOne(uuid.toString());
+        return storageEngine.delete(upload.getId());
     }
 
     /*
      * (non-Javadoc)
      * 
-     * @see org.brewman.upload.service.UploadService#saveChunk(java.lang.String,
-     * int, int, int, java.lang.String, int, long,
-     * org.springframework.web.multipart.MultipartFile)
+     * @see org.brewman.upload.service.UploadService#getContent(java.lang.String)
      */
     @Override
-    public Upload saveChunk(String flowIdentifier, int flowChunkNumber,
-            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
-            int flowTotalChunks, long flowTotalSize, MultipartFile file)
-            throws IOException {
-        /*
-         * Get the Upload to see if we have already started this upload. We will
-         * attach the next chuck if there is one or create a new entry
-         * otherwise.
-         */
-        Upload upload = this.getUpload(flowIdentifier);
+    public UploadContent getContent(String flowIdentifier) throws IOException {
+        Upload upload = uploadRepository.findOne(flowIdentifier);
 
-        /*
-         * Force the creation of the upload record to be handled in the
-         * testChunk function.
-         */
-        if (upload == null) {
-            throw new IOException("Upload record does not exist.");
+        if (upload == null || upload.getState() != UploadState.COMPLETE) {
+            return null;
         }
 
-        /*
-         * Test that the file hasn't changed since the last chunk test.
-         */
-        testFlowUnchanged(upload, flowFilename, flowTotalChunks, flowTotalSize);
+        String storageId = flowIdentifier;
 
-        /*
-         * Check if the chunk has already been uploaded. It seems that this is
-         * normal case when you pause/resume. So just return the Upload as it
-         * currently stands.
-         */
-        if (upload.getChunks().get(flowChunkNumber - 1)) {
-            LOG.warn("chunk already uploaded: {}", flowChunkNumber - 1);
-            return upload;
-        }
+        if (upload.getBlobId() != null) {
+            UploadBlob blob = uploadBlobRepository.findOne(upload.getBlobId());
 
-        /*
-         * Add this chunk to the chunk directory and set the chunk list element
-         * to true.
-         */
-        try {
-            upload = saveChunkToDisk(upload, flowChunkNumber, file);
-        } catch (IOException e) {
-            LOG.error(e.getMessage(), e);
-            throw e;
-        }
+            if (blob == null) {
+                return null;
+            }
 
-        /*
-         * Check to see if the upload is complete. If all the chunks are in then
-         * it is and we should mark it as such.
-         */
-        if (uploadComplete(upload)) {
-            LOG.trace("flow complete");
-            upload.setUploadComplete(true);
-            upload = uploadRepository.save(upload);
+            storageId = blob.getStorageId();
         }
 
-        /*
-         * If the upload is complete, then go ahead and process the file.
-         */
-        if (upload.getUploadComplete() == true) {
-            /*
-             * TODO: Concatenate all the chunks.
-             */
-            upload = mergeChunks(upload);
-
-            /*
-             * Calculate and set the MD5SUM.
-             */
-            upload.setMd5sum(calculateMd5Sum(flowIdentifier));
-
-            /*
-             * Record the completed time.
-             */
-            upload.setCompletedAt(new LocalDate());
-
-            upload = uploadRepository.save(upload);
+        StorageStat stat = storageEngine.stat(storageId);
 
-            LOG.trace("upload: {}", upload);
+        if (!stat.isComplete()) {
+            return null;
         }
 
-        LOG.debug("upload: {}", upload);
-
-        return upload;
+        return new UploadContent(upload, storageId, stat.getSize(),
+                stat.getPath(), storageEngine);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * If the client knows the MD5SUM of the file and that content is already
+     * stored, complete the upload now by referencing the stored content.
      * 
-     * @see org.brewman.upload.service.UploadService#testChunk(java.lang.String,
-     * int, int, int, java.lang.String, int, long)
+     * @param uuid
+     * @param flowFileMd5
+     * @param flowChunkSize
+     * @param flowFilename
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * 
+     * @return the completed Upload, or null if the content isn't known
      */
-    @Override
-    public boolean testChunk(String flowIdentifier, int flowChunkNumber,
-            int flowChunkSize, int flowCurrentChunkSize, String flowFilename,
-            int flowTotalChunks, long flowTotalSize) throws IOException {
-        /*
-         * Confirm that the flowIdentifier is an UUID and use it from here on
-         * out.
-         */
-        UUID uuid = UUID.fromString(flowIdentifier);
-
-        /*
-         * Get the current UUID to see if we have already started this upload.
-         * Will attach the next chuck if there is one or create a new entry
-         * otherwise.
-         */
-        Upload upload = uploadRepository.findOne(uuid.toString());
-
-        /*
-         * Check that the total size isn't too large!
-         * 
-         * Cap it at 4GB for now.
-         */
-        long maxSize = 4l * 1024l * 1024l * 1024l;
-        if (flowTotalSize > maxSize) {
-            LOG.error("flowTotalSize: {} -- ", flowTotalSize, maxSize);
-            throw new IOException("file to large");
+    private Upload claimKnownContent(UUID uuid, String flowFileMd5,
+            int flowChunkSize, String flowFilename, int flowTotalChunks,
+            long flowTotalSize) {
+        if (!deduplication || flowFileMd5 == null) {
+            return null;
         }
 
-        if (upload == null) {
-            /*
-             * Entry didn't exist. Check to make sure we haven't already created
-             * a file with the same UUID (highly unlikely).
-             */
-            if (testFileExists(uuid)) {
-                throw new FileExistsException("file already exists");
-            }
-
-            /*
-             * Create the new Upload entry and leave it as incomplete.
-             */
-            upload = new Upload();
-
-            upload.setId(uuid.toString());
-            upload.setOriginalName(flowFilename);
-            upload.setUploadedAt(new LocalDate());
-            upload.setUploadComplete(false);
-            upload.setTotalChunks(flowTotalChunks);
-            upload.setTotalSize(flowTotalSize);
+        UploadBlob blob = uploadBlobRepository.retainExisting(
+                flowFileMd5.toLowerCase(), flowTotalSize);
 
-            /*
-             * Create the chunks list with all false.
-             */
-            List<Boolean> chunks = new ArrayList<Boolean>();
-
-            for (int i = 0; i < flowTotalChunks; i++) {
-                chunks.add(new Boolean(false));
-            }
+        if (blob == null) {
+            return null;
+        }
 
-            upload.setChunks(chunks);
+        LOG.debug("content already stored: {} -- {}", uuid, blob);
 
-            /*
-             * Create a directory to store the chunks in.
-             */
-            createDirectory(getChunkDirectoryPath(upload));
+        Upload upload = new Upload();
 
-            upload = uploadRepository.save(upload);
-        }
+        upload.setId(uuid.toString());
+        upload.setOriginalName(flowFilename);
+        upload.setUploadedAt(new LocalDate());
+        upload.setCompletedAt(new LocalDate());
+        upload.setUploadComplete(true);
+        upload.setState(UploadState.COMPLETE);
+        upload.setTotalChunks(flowTotalChunks);
+        upload.setTotalSize(flowTotalSize);
+        upload.setChunkSize(flowChunkSize);
+        upload.setStorageMode(storageMode);
+        upload.setMd5sum(blob.getId());
+        upload.setBlobId(blob.getId());
 
         /*
-         * Test that the file hasn't changed since the last chunk test.
+         * Every chunk is there as far as flow.js is concerned.
          */
-        testFlowUnchanged(upload, flowFilename, flowTotalChunks, flowTotalSize);
+        int[] chunkBits = ChunkBitmap.create(flowTotalChunks);
 
-        /*
-         * Check if the chunk has already been uploaded.
-         */
-        if (upload.getChunks().get(flowChunkNumber - 1)) {
-            LOG.warn("chunk already uploaded: {}", flowChunkNumber - 1);
-            return true;
+        for (int n = 1; n <= flowTotalChunks; n++) {
+            ChunkBitmap.set(chunkBits, n);
         }
 
-        /*
-         * We're all good. Let them send the chunk.
-         */
-        return false;
+        upload.setChunkBits(chunkBits);
+        upload.setReceivedChunks(flowTotalChunks);
+
+        return uploadRepository.save(upload);
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Point a freshly completed upload at the shared copy of its content. If
+     * the content was already stored, this upload's own copy is dropped.
      * 
-     * @see org.brewman.upload.service.UploadService#getAvailableIdentifier()
+     * @param upload
+     * 
+     * @throws IOException
      */
-    @Override
-    public String getAvailableIdentifier() {
-        return getAvailableUUID().toString();
+    private void shareContent(Upload upload) throws IOException {
+        UploadBlob blob = uploadBlobRepository.retain(upload.getMd5sum(),
+                upload.getTotalSize(), upload.getId());
+
+        upload.setBlobId(blob.getId());
+
+        if (!upload.getId().equals(blob.getStorageId())) {
+            LOG.debug("content already stored, dropping copy: {} -- {}",
+                    upload.getId(), blob);
+            storageEngine.delete(upload.getId());
+        }
     }
 
     /**
@@ -361,9 +1536,11 @@ public class UploadServiceImpl implements UploadService, InitializingBean {
      * @return
      */
     private boolean testFileExists(UUID uuid) {
-        File f = new File(baseLocation + uuid.toString());
-
-        return f.exists();
+        try {
+            return storageEngine.stat(uuid.toString()).exists();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
@@ -372,15 +1549,16 @@ public class UploadServiceImpl implements UploadService, InitializingBean {
      * count, and total file size cannot change.
      * 
      * @param upload
-     * @param user
+     * @param flowChunkSize
      * @param flowFilename
      * @param flowTotalChunks
      * @param flowTotalSize
      * 
      * @throws IOException
      */
-    private void testFlowUnchanged(Upload upload, String flowFilename,
-            int flowTotalChunks, long flowTotalSize) throws IOException {
+    private void testFlowUnchanged(Upload upload, int flowChunkSize,
+            String flowFilename, int flowTotalChunks, long flowTotalSize)
+            throws IOException {
 
         if (!upload.getOriginalName().equals(flowFilename)) {
             throw new IOException("flowFilename change");
@@ -393,6 +1571,15 @@ public class UploadServiceImpl implements UploadService, InitializingBean {
         if (upload.getTotalSize() != flowTotalSize) {
             throw new IOException("flowTotalSize change");
         }
+
+        /*
+         * Older records don't have the chunk size, but the positional writes
+         * depend on it staying the same.
+         */
+        if (upload.getChunkSize() != null
+                && upload.getChunkSize() != flowChunkSize) {
+            throw new IOException("flowChunkSize change");
+        }
     }
 
     /**
@@ -404,202 +1591,239 @@ public class UploadServiceImpl implements UploadService, InitializingBean {
      * 
      * @throws IOException
      */
-    @Timed
     private String calculateMd5Sum(String flowIdentifier) throws IOException {
         String md5 = null;
 
         /*
          * Generate an MD5 sum. This should be safe for large files.
          */
-        FileInputStream fis = new FileInputStream(getFile(flowIdentifier));
-        md5 = DigestUtils.md5Hex(fis);
-        fis.close();
+        StorageStat stat = storageEngine.stat(flowIdentifier);
+
+        try (InputStream in = Channels.newInputStream(storageEngine.readRange(
+                flowIdentifier, 0, stat.getSize()))) {
+            md5 = DigestUtils.md5Hex(in);
+        }
 
         return md5;
     }
 
     /**
-     * Check the chunks list to see if they are all true. If they are, then all
-     * the chunks are uploaded.
+     * Feed a single chunk into the running digest. Used by the digest engine
+     * right after the chunk is written so the read should come from the page
+     * cache.
      * 
      * @param u
+     * @param flowChunkNumber
+     * @param md
      * 
-     * @return
+     * @throws IOException
      */
-    private synchronized boolean uploadComplete(Upload u) {
-        for (Boolean b : u.getChunks()) {
-            if (b.booleanValue() == false) {
-                return false;
+    private void digestChunk(Upload u, int flowChunkNumber, MessageDigest md)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(DIGEST_BUFFER_SIZE);
+
+        try (ReadableByteChannel in = storageEngine.readChunk(u,
+                flowChunkNumber)) {
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
             }
         }
+    }
 
-        return true;
+    /**
+     * Check the received counter against the total. The counter only counts
+     * the first receipt of each chunk so when they match, all the chunks are
+     * uploaded.
+     * 
+     * @param u
+     * 
+     * @return
+     */
+    private boolean uploadComplete(Upload u) {
+        return u.getReceivedChunks() != null
+                && u.getReceivedChunks().intValue() == u.getTotalChunks()
+                        .intValue();
     }
 
     /**
-     * Write the new chunk to disk and update the Upload record. Don't
-     * synchronize here because the file write may take some time. Only
-     * synchronize on the update of the Upload.
+     * Write the new chunk to disk and update the Upload record. Nothing is
+     * locked while the file is written, the record update is a single atomic
+     * write.
      * 
      * @param u
      * @param flowChunkNumber
-     * @param file
+     * @param in
+     * @param size
      * 
      * @return
      * 
      * @throws IOException
      */
     private Upload saveChunkToDisk(Upload u, int flowChunkNumber,
-            MultipartFile file) throws IOException {
-        File f = getChunkFile(u, flowChunkNumber);
-
-        FileOutputStream output = new FileOutputStream(f, true);
-
-        try {
-            output.write(file.getBytes());
-        } finally {
-            output.close();
-        }
+            InputStream in, long size) throws IOException {
+        writeChunkToDisk(u, flowChunkNumber, in, size);
 
         return updateUploadForChunk(u, flowChunkNumber);
     }
 
     /**
-     * Force the update of the Upload through here so that we can avoid
-     * optimistic update exceptions.
+     * Write a chunk to disk without touching the Upload record.
      * 
      * @param u
      * @param flowChunkNumber
+     * @param in
+     * @param size
      * 
-     * @return
+     * @throws IOException
      */
-    private synchronized Upload updateUploadForChunk(Upload u,
-            int flowChunkNumber) {
-        u = uploadRepository.findOne(u.getId());
-        u.getChunks().set(flowChunkNumber - 1, new Boolean(true));
-        u = uploadRepository.save(u);
+    private void writeChunkToDisk(Upload u, int flowChunkNumber,
+            InputStream in, long size) throws IOException {
+        try (UploadMetrics.InFlight chunk = uploadMetrics.startChunk(u
+                .getId());
+                Timer.Context timer = uploadMetrics.time(Phase.DISK_WRITE);
+                ChunkWriter out = openChunkWriter(u, flowChunkNumber, size)) {
+            writeChunk(out, in, size);
+        }
 
-        return u;
+        uploadMetrics.chunkWritten(size);
     }
 
     /**
-     * Now that the chunks have all been uploaded, we need to merge them back
-     * into the original file.
+     * Open the writer for a chunk, first making sure the size the client says
+     * it is sending is the length of the chunk's slot. Anything else would
+     * spill into the next chunk or leave a hole in the file.
      * 
-     * @param upload
+     * @param u
+     * @param flowChunkNumber
+     * @param size
      * 
      * @return
      * 
+     * @throws ChunkOutOfRangeException
+     *             if the size doesn't match the slot
      * @throws IOException
      */
-    @Timed
-    private synchronized Upload mergeChunks(Upload upload) throws IOException {
-        upload = uploadRepository.findOne(upload.getId());
-
-        FileOutputStream flowFile = new FileOutputStream(getFileLocation(upload
-                .getId().toString()));
-
-        for (int i = 1; i <= upload.getTotalChunks(); i++) {
-            byte[] chunkBytes;
-
-            try {
-                chunkBytes = getChunkBytes(upload, i);
-                flowFile.write(chunkBytes);
-
-                File chunkFile = getChunkFile(upload, i);
-                chunkFile.delete();
-            } catch (IOException e) {
-                LOG.error(e.getMessage());
-            }
+    private ChunkWriter openChunkWriter(Upload u, int flowChunkNumber,
+            long size) throws IOException {
+        ChunkWriter out = storageEngine.openChunk(u, flowChunkNumber);
+
+        if (out.getLength() >= 0 && out.getLength() != size) {
+            IOUtils.closeQuietly(out);
+            throw new ChunkOutOfRangeException(String.format(
+                    "chunk size mismatch: chunk %d is %d bytes but got %d",
+                    flowChunkNumber, out.getLength(), size));
         }
 
-        flowFile.close();
-
-        File chunkDir = new File(getChunkDirectoryPath(upload));
-        chunkDir.delete();
-
-        upload = uploadRepository.save(upload);
-
-        return upload;
+        return out;
     }
 
     /**
-     * Get the full path for this flow.
+     * Write the chunk using either the streaming or the buffered path.
      * 
-     * @param flowIdentifier
+     * @param out
+     * @param in
+     * @param size
      * 
-     * @return
+     * @throws IOException
      */
-    private String getFileLocation(String flowIdentifier) {
-        return baseLocation + File.separator + flowIdentifier;
+    private void writeChunk(ChunkWriter out, InputStream in, long size)
+            throws IOException {
+        if (streamingWrites) {
+            writeChunkStreaming(out, in, size);
+        } else {
+            writeChunkBuffered(out, in, size);
+        }
     }
 
     /**
-     * Get a File for this flow.
+     * Stream the chunk from the request into the writer as a channel. When the
+     * container has spooled a multipart part to disk we get a FileChannel on
+     * both sides and, with the local engine, the copy never touches the heap.
+     * Either way the memory used is the same whatever the chunk size. The
+     * stream belongs to the caller and is left open.
      * 
-     * @param flowIdentifier
+     * @param out
+     * @param in
+     * @param size
      * 
-     * @return
+     * @throws IOException
      */
-    private File getFile(String flowIdentifier) {
-        return new File(getFileLocation(flowIdentifier));
+    private void writeChunkStreaming(ChunkWriter out, InputStream in, long size)
+            throws IOException {
+        ReadableByteChannel src = openChannel(in);
+        long written = 0;
+
+        while (written < size) {
+            long n = out.transferFrom(src, size - written);
+
+            if (n <= 0) {
+                break;
+            }
+
+            written += n;
+        }
+
+        if (written != size) {
+            throw new IOException(String.format(
+                    "chunk truncated: expected %d bytes but got %d", size,
+                    written));
+        }
     }
 
     /**
-     * Get a File for this chunk of the flow.
+     * The original write path. Reads the whole chunk onto the heap and then
+     * writes it out again.
      * 
-     * @param u
-     * @param flowChunkNumber
+     * @param out
+     * @param in
+     * @param size
      * 
-     * @return
+     * @throws IOException
      */
-    private File getChunkFile(Upload u, int flowChunkNumber) {
-        return new File(getChunkDirectoryPath(u) + flowChunkNumber);
+    private void writeChunkBuffered(ChunkWriter out, InputStream in, long size)
+            throws IOException {
+        out.write(ByteBuffer.wrap(IOUtils.toByteArray(in, size)));
     }
 
     /**
-     * Get the bytes from the chunk of the flow.
+     * Prefer the underlying FileChannel if the stream is backed by a file.
      * 
-     * @param u
-     * @param flowChunkNumber
+     * @param in
      * 
      * @return
-     * 
-     * @throws IOException
      */
-    private byte[] getChunkBytes(Upload u, int flowChunkNumber)
-            throws IOException {
-        byte[] rtn = null;
-        FileInputStream fis = null;
-        BufferedInputStream bis = null;
-        File f = getChunkFile(u, flowChunkNumber);
-
-        if (f.exists()) {
-            try {
-                fis = new FileInputStream(f);
-                bis = new BufferedInputStream(fis);
-                rtn = new byte[(int) f.length()];
-                bis.read(rtn);
-            } catch (IOException e) {
-                LOG.error(e.getMessage(), e);
-                return null;
-            } finally {
-                bis.close();
-            }
+    private ReadableByteChannel openChannel(InputStream in) {
+        if (in instanceof FileInputStream) {
+            return ((FileInputStream) in).getChannel();
         }
 
-        return rtn;
+        return Channels.newChannel(in);
     }
 
     /**
-     * Given the Upload, get the path that the chunks should be placed in.
+     * Record the chunk against the Upload with a single atomic update in the
+     * DB. If another request beat us to the same chunk then just hand back the
+     * Upload as it stands.
      * 
      * @param u
+     * @param flowChunkNumber
      * 
-     * @return
+     * @return the Upload with the fields needed to carry on with the chunk
      */
-    private String getChunkDirectoryPath(Upload u) {
-        return baseLocation + File.separator + u.getId().toString() + ".chunk"
-                + File.separator;
+    private Upload updateUploadForChunk(Upload u, int flowChunkNumber) {
+        Upload updated;
+
+        try (Timer.Context timer = uploadMetrics.time(Phase.METADATA_WRITE)) {
+            updated = uploadRepository.recordChunk(u.getId(), flowChunkNumber);
+        }
+
+        if (updated == null) {
+            LOG.warn("chunk already recorded: {}", flowChunkNumber - 1);
+            return getUpload(u.getId());
+        }
+
+        return stateCache.applyChunkReceipt(updated);
     }
 }
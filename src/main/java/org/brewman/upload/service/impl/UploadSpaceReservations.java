@@ -0,0 +1,120 @@
+package org.brewman.upload.service.impl;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.brewman.upload.service.InsufficientStorageException;
+
+import com.codahale.metrics.Gauge;
+
+/**
+ * Keeps track of the space uploads in progress are still going to need, so an
+ * upload that can't fit is turned away before the client sends any of it.
+ * 
+ * Each upload holds a reservation for what it has yet to write. The free space
+ * of the volume already accounts for what has been written, so the
+ * reservation shrinks as chunks arrive and is released once the upload is
+ * finished, fails or is removed.
+ * 
+ * Reservations only live in this process and are only ever made when an
+ * upload is created. A chunk can shrink a reservation but never make one, so
+ * a chunk that lands on another node, or arrives after the upload has been
+ * released, can't leave space reserved that nothing will give back.
+ * 
+ * @author danielshiplett
+ */
+class UploadSpaceReservations {
+
+    /**
+     * Where the free space comes from.
+     */
+    interface SpaceSource {
+        long getUsableSpace() throws IOException;
+    }
+
+    private final Map<String, Long> reservations = new HashMap<>();
+
+    private final SpaceSource source;
+
+    private final long minFreeBytes;
+
+    private long reserved;
+
+    UploadSpaceReservations(SpaceSource source, long minFreeBytes) {
+        this.source = source;
+        this.minFreeBytes = minFreeBytes;
+    }
+
+    /**
+     * Reserve space for a new upload.
+     * 
+     * @param flowIdentifier
+     * @param bytes
+     *            the space the upload will need
+     * 
+     * @throws InsufficientStorageException
+     *             if the upload won't fit alongside the ones in progress
+     * @throws IOException
+     *             if the free space can't be read
+     */
+    synchronized void reserve(String flowIdentifier, long bytes)
+            throws IOException {
+        long available = source.getUsableSpace() - reserved - minFreeBytes;
+
+        if (bytes > available) {
+            throw new InsufficientStorageException(String.format(
+                    "not enough space: need %d bytes, %d available", bytes,
+                    Math.max(0, available)));
+        }
+
+        put(flowIdentifier, bytes);
+    }
+
+    /**
+     * Shrink an upload's reservation to what it still needs. Does nothing if
+     * the upload holds no reservation here.
+     * 
+     * @param flowIdentifier
+     * @param bytes
+     */
+    synchronized void update(String flowIdentifier, long bytes) {
+        Long previous = reservations.get(flowIdentifier);
+
+        if (previous != null && bytes < previous) {
+            put(flowIdentifier, bytes);
+        }
+    }
+
+    /**
+     * Give back whatever an upload has reserved.
+     * 
+     * @param flowIdentifier
+     */
+    synchronized void release(String flowIdentifier) {
+        Long previous = reservations.remove(flowIdentifier);
+
+        if (previous != null) {
+            reserved -= previous;
+        }
+    }
+
+    /**
+     * @return the total space reserved
+     */
+    synchronized long getReserved() {
+        return reserved;
+    }
+
+    /**
+     * @return a gauge of the total space reserved
+     */
+    Gauge<Long> getReservedGauge() {
+        return this::getReserved;
+    }
+
+    private void put(String flowIdentifier, long bytes) {
+        Long previous = reservations.put(flowIdentifier, Math.max(0, bytes));
+        reserved += Math.max(0, bytes) - (previous != null ? previous : 0);
+    }
+}
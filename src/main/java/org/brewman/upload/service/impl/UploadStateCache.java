@@ -0,0 +1,153 @@
+package org.brewman.upload.service.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.brewman.upload.domain.Upload;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A bounded, evicting, in-process cache of Upload state keyed by
+ * flowIdentifier. Every write to an Upload is pushed through here so the
+ * per-chunk test and save requests can be answered without a trip to the DB.
+ * 
+ * Entries expire a fixed time after they were last written rather than
+ * accessed. Another node may move the upload on, so a client polling for it
+ * here must not keep a stale entry alive by polling.
+ * 
+ * Entries are treated as immutable. Partial updates build a new Upload from
+ * the cached one rather than changing it in place.
+ * 
+ * @author danielshiplett
+ */
+class UploadStateCache {
+
+    private final Cache<String, Upload> cache;
+
+    UploadStateCache(long maximumSize, long expireAfterWriteSeconds) {
+        cache = CacheBuilder.newBuilder().maximumSize(maximumSize)
+                .expireAfterWrite(expireAfterWriteSeconds, TimeUnit.SECONDS)
+                .recordStats().build();
+    }
+
+    /**
+     * Get the Upload from the cache or load it.
+     * 
+     * @param flowIdentifier
+     * @param loader
+     *            loads the Upload on a miss, may return null
+     * 
+     * @return the Upload or null if there isn't one
+     */
+    Upload get(String flowIdentifier, Function<String, Upload> loader) {
+        Upload upload = cache.getIfPresent(flowIdentifier);
+
+        if (upload == null) {
+            upload = loader.apply(flowIdentifier);
+
+            if (upload != null) {
+                cache.put(flowIdentifier, upload);
+            }
+        }
+
+        return upload;
+    }
+
+    /**
+     * Replace the cached Upload with a fully loaded or saved one.
+     * 
+     * @param upload
+     */
+    void put(Upload upload) {
+        cache.put(upload.getId(), upload);
+    }
+
+    /**
+     * Apply the result of a chunk receipt to the cached Upload. The receipt
+     * only carries the chunk fields. Receipts can come back out of order, but
+     * the received counter only goes up and a higher count always carries
+     * every bit a lower one did, so older receipts are dropped.
+     * 
+     * @param receipt
+     *            the partial Upload returned by the receipt
+     * 
+     * @return the merged Upload, or the receipt if nothing was cached
+     */
+    Upload applyChunkReceipt(Upload receipt) {
+        Upload merged = cache.asMap().computeIfPresent(receipt.getId(),
+                (id, cached) -> {
+                    if (cached.getReceivedChunks() != null
+                            && receipt.getReceivedChunks() < cached
+                                    .getReceivedChunks()) {
+                        return cached;
+                    }
+
+                    Upload u = copyOf(cached);
+                    u.setChunkBits(receipt.getChunkBits());
+                    u.setReceivedChunks(receipt.getReceivedChunks());
+                    u.setState(receipt.getState());
+                    u.setUploadComplete(receipt.getUploadComplete());
+                    u.setLastActivity(receipt.getLastActivity());
+                    return u;
+                });
+
+        return merged != null ? merged : receipt;
+    }
+
+    /**
+     * Drop a single Upload.
+     * 
+     * @param flowIdentifier
+     */
+    void invalidate(String flowIdentifier) {
+        cache.invalidate(flowIdentifier);
+    }
+
+    /**
+     * Drop everything.
+     */
+    void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Publish the hit, miss and eviction counts and the size.
+     * 
+     * @param metricRegistry
+     * @param prefix
+     */
+    void registerMetrics(MetricRegistry metricRegistry, String prefix) {
+        metricRegistry.register(MetricRegistry.name(prefix, "hits"),
+                (Gauge<Long>) () -> cache.stats().hitCount());
+        metricRegistry.register(MetricRegistry.name(prefix, "misses"),
+                (Gauge<Long>) () -> cache.stats().missCount());
+        metricRegistry.register(MetricRegistry.name(prefix, "evictions"),
+                (Gauge<Long>) () -> cache.stats().evictionCount());
+        metricRegistry.register(MetricRegistry.name(prefix, "size"),
+                (Gauge<Long>) () -> cache.size());
+    }
+
+    private static Upload copyOf(Upload cached) {
+        Upload u = new Upload();
+        u.setId(cached.getId());
+        u.setOriginalName(cached.getOriginalName());
+        u.setUploadedAt(cached.getUploadedAt());
+        u.setMd5sum(cached.getMd5sum());
+        u.setUploadComplete(cached.getUploadComplete());
+        u.setState(cached.getState());
+        u.setTotalChunks(cached.getTotalChunks());
+        u.setTotalSize(cached.getTotalSize());
+        u.setChunkSize(cached.getChunkSize());
+        u.setStorageMode(cached.getStorageMode());
+        u.setReceivedChunks(cached.getReceivedChunks());
+        u.setCompletedAt(cached.getCompletedAt());
+        u.setChunkBits(cached.getChunkBits());
+        u.setBlobId(cached.getBlobId());
+        u.setLastActivity(cached.getLastActivity());
+        return u;
+    }
+}
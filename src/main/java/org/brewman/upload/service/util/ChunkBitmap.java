@@ -0,0 +1,162 @@
+package org.brewman.upload.service.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utility class for the compact received-chunk bitmap kept on an Upload.
+ * 
+ * The bitmap is an array of 32-bit words with bit {@code (n - 1) % 32} of word
+ * {@code (n - 1) / 32} set once chunk {@code n} is received. Plain int words
+ * are used rather than a binary blob so a single chunk can be set in place
+ * with the Mongo {@code $bit} operator.
+ * 
+ * @author danielshiplett
+ */
+public final class ChunkBitmap {
+
+    public static final int BITS_PER_WORD = 32;
+
+    private ChunkBitmap() {
+    }
+
+    /**
+     * Creates an empty bitmap big enough for all the chunks.
+     * 
+     * @param totalChunks
+     *            the number of chunks in the upload
+     * 
+     * @return the empty bitmap
+     */
+    public static int[] create(int totalChunks) {
+        return new int[(totalChunks + BITS_PER_WORD - 1) / BITS_PER_WORD];
+    }
+
+    /**
+     * The word a chunk lives in.
+     * 
+     * @param flowChunkNumber
+     *            the 1-based chunk number
+     * 
+     * @return the word index
+     */
+    public static int wordIndex(int flowChunkNumber) {
+        checkChunkNumber(flowChunkNumber);
+
+        return (flowChunkNumber - 1) / BITS_PER_WORD;
+    }
+
+    /**
+     * The mask of a chunk within its word.
+     * 
+     * @param flowChunkNumber
+     *            the 1-based chunk number
+     * 
+     * @return the mask
+     */
+    public static int mask(int flowChunkNumber) {
+        checkChunkNumber(flowChunkNumber);
+
+        return 1 << ((flowChunkNumber - 1) % BITS_PER_WORD);
+    }
+
+    /**
+     * Chunk numbers start at 1. Anything lower would land on the bit of some
+     * other chunk.
+     * 
+     * @param flowChunkNumber
+     *            the 1-based chunk number
+     * 
+     * @throws IndexOutOfBoundsException
+     *             if the chunk number is less than 1
+     */
+    private static void checkChunkNumber(int flowChunkNumber) {
+        if (flowChunkNumber < 1) {
+            throw new IndexOutOfBoundsException("chunk number: "
+                    + flowChunkNumber);
+        }
+    }
+
+    /**
+     * Has this chunk been received?
+     * 
+     * @param bits
+     *            the bitmap, may be null for an upload that hasn't got one
+     * @param flowChunkNumber
+     *            the 1-based chunk number
+     * 
+     * @return true if the chunk's bit is set
+     */
+    public static boolean isSet(int[] bits, int flowChunkNumber) {
+        int word = wordIndex(flowChunkNumber);
+
+        return bits != null && word < bits.length
+                && (bits[word] & mask(flowChunkNumber)) != 0;
+    }
+
+    /**
+     * Sets a chunk's bit in place.
+     * 
+     * @param bits
+     *            the bitmap
+     * @param flowChunkNumber
+     *            the 1-based chunk number
+     */
+    public static void set(int[] bits, int flowChunkNumber) {
+        bits[wordIndex(flowChunkNumber)] |= mask(flowChunkNumber);
+    }
+
+    /**
+     * Counts the chunks that have been received.
+     * 
+     * @param bits
+     *            the bitmap
+     * 
+     * @return the number of set bits
+     */
+    public static int count(int[] bits) {
+        int count = 0;
+
+        if (bits != null) {
+            for (int word : bits) {
+                count += Integer.bitCount(word);
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Collapses the received chunks into runs so a resuming client can learn
+     * the whole state of an upload in one small response.
+     * 
+     * @param bits
+     *            the bitmap, may be null for an upload that hasn't got one
+     * @param totalChunks
+     *            the number of chunks in the upload
+     * 
+     * @return inclusive {@code [first, last]} 1-based chunk numbers of every
+     *         run of received chunks, in order
+     */
+    public static List<int[]> ranges(int[] bits, int totalChunks) {
+        List<int[]> ranges = new ArrayList<>();
+        int start = 0;
+
+        for (int n = 1; n <= totalChunks; n++) {
+            if (isSet(bits, n)) {
+                if (start == 0) {
+                    start = n;
+                }
+            } else if (start != 0) {
+                ranges.add(new int[] { start, n - 1 });
+                start = 0;
+            }
+        }
+
+        if (start != 0) {
+            ranges.add(new int[] { start, totalChunks });
+        }
+
+        return ranges;
+    }
+}
@@ -0,0 +1,168 @@
+package org.brewman.upload.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges chunk files into a single target file. The target is preallocated
+ * and every chunk is copied into its own region in parallel with
+ * FileChannel.transferTo so the kernel moves the data rather than the heap.
+ * 
+ * Each storage volume gets its own fork-join pool so the parallelism can be
+ * matched to what the disk underneath can take. Volumes are identified by
+ * their FileStore name.
+ * 
+ * @author danielshiplett
+ */
+class ChunkMergeEngine {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(ChunkMergeEngine.class);
+
+    private final int defaultParallelism;
+
+    private final Map<String, Integer> volumeParallelism;
+
+    private final ConcurrentMap<String, ForkJoinPool> pools = new ConcurrentHashMap<>();
+
+    ChunkMergeEngine(int defaultParallelism,
+            Map<String, Integer> volumeParallelism) {
+        this.defaultParallelism = defaultParallelism;
+        this.volumeParallelism = Collections
+                .unmodifiableMap(new HashMap<>(volumeParallelism));
+    }
+
+    /**
+     * Merge the chunks, in order, into the target file.
+     * 
+     * @param chunks
+     *            the chunk files in order
+     * @param target
+     *            the file to create
+     * 
+     * @throws IOException
+     *             if a chunk is missing or any copy fails
+     */
+    void merge(List<File> chunks, File target) throws IOException {
+        /*
+         * Work out where every chunk goes before anything is copied.
+         */
+        long[] offsets = new long[chunks.size()];
+        long total = 0;
+
+        for (int i = 0; i < chunks.size(); i++) {
+            File chunk = chunks.get(i);
+
+            if (!chunk.isFile()) {
+                throw new IOException(String.format("missing chunk: %s",
+                        chunk));
+            }
+
+            offsets[i] = total;
+            total += chunk.length();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(total);
+        }
+
+        List<Callable<Void>> copies = new ArrayList<>(chunks.size());
+
+        for (int i = 0; i < chunks.size(); i++) {
+            Path chunk = chunks.get(i).toPath();
+            long offset = offsets[i];
+
+            copies.add(() -> {
+                copyRegion(chunk, target.toPath(), offset);
+                return null;
+            });
+        }
+
+        ForkJoinPool pool = getPool(target);
+
+        LOG.debug("merging {} chunks ({} bytes) with parallelism {}",
+                chunks.size(), total, pool.getParallelism());
+
+        for (Future<Void> copy : pool.invokeAll(copies)) {
+            try {
+                copy.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("merge interrupted", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Copy a whole chunk into the target starting at the given offset.
+     * 
+     * @param chunk
+     * @param target
+     * @param offset
+     * 
+     * @throws IOException
+     */
+    private void copyRegion(Path chunk, Path target, long offset)
+            throws IOException {
+        try (FileChannel src = FileChannel.open(chunk, StandardOpenOption.READ);
+                FileChannel dst = FileChannel.open(target,
+                        StandardOpenOption.WRITE)) {
+            long size = src.size();
+            long position = 0;
+
+            dst.position(offset);
+
+            while (position < size) {
+                long n = src.transferTo(position, size - position, dst);
+
+                if (n <= 0) {
+                    throw new IOException(String.format(
+                            "short copy of chunk %s at %d", chunk, position));
+                }
+
+                position += n;
+            }
+        }
+    }
+
+    /**
+     * Get the pool for the volume the target lives on.
+     * 
+     * @param target
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    private ForkJoinPool getPool(File target) throws IOException {
+        String volume = Files.getFileStore(target.toPath()).name();
+
+        return pools.computeIfAbsent(volume, name -> new ForkJoinPool(
+                volumeParallelism.getOrDefault(name, defaultParallelism)));
+    }
+}
@@ -0,0 +1,46 @@
+package org.brewman.upload.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Writes the data of a single chunk sequentially from the start of the chunk.
+ * When the length of the chunk is known the writer won't write past it, and
+ * closing it fails if less than that was written.
+ * 
+ * @author danielshiplett
+ */
+public interface ChunkWriter extends Closeable {
+
+    /**
+     * Write everything remaining in the buffer.
+     * 
+     * @param src
+     * 
+     * @throws IOException
+     */
+    void write(ByteBuffer src) throws IOException;
+
+    /**
+     * Copy up to count bytes from the channel. Implementations should let the
+     * kernel do the copy where they can.
+     * 
+     * @param src
+     * @param count
+     * 
+     * @return the number of bytes copied, zero or less at the end of the
+     *         source
+     * 
+     * @throws IOException
+     */
+    long transferFrom(ReadableByteChannel src, long count) throws IOException;
+
+    /**
+     * How long is the chunk's slot?
+     * 
+     * @return the length, or -1 if it isn't known
+     */
+    long getLength();
+}
@@ -0,0 +1,627 @@
+package org.brewman.upload.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.brewman.upload.domain.StorageMode;
+import org.brewman.upload.domain.Upload;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps uploads as plain files under a base location, fanned out into
+ * {@code ab/cd/} directories taken from the start of the flowIdentifier so no
+ * directory grows large. Lookups go straight to the one place a file can be
+ * and never list a directory.
+ *
+ * Files from before the fan-out are still found where they are. With the
+ * migration switched on they are moved into the fan-out in the background.
+ *
+ * Chunked uploads get a directory with a file per chunk which are merged into
+ * the final file at the end. Positional uploads are written straight into a
+ * preallocated part file which is renamed at the end.
+ *
+ * @author danielshiplett
+ */
+public class LocalFileStorageEngine implements StorageEngine {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(LocalFileStorageEngine.class);
+
+    private final String baseLocation;
+
+    private final ChunkMergeEngine mergeEngine;
+
+    private boolean flatLayoutMigration = false;
+
+    /**
+     * @param baseLocation
+     *            the directory everything is stored under
+     * @param mergeParallelism
+     *            how many chunks are copied at once when merging
+     * @param volumeMergeParallelism
+     *            the merge parallelism by FileStore name
+     */
+    public LocalFileStorageEngine(String baseLocation, int mergeParallelism,
+            Map<String, Integer> volumeMergeParallelism) {
+        this.baseLocation = baseLocation;
+        this.mergeEngine = new ChunkMergeEngine(mergeParallelism,
+                volumeMergeParallelism);
+    }
+
+    /**
+     * Get the base location for the file storage.
+     *
+     * @return the base location
+     */
+    public String getBaseLocation() {
+        return baseLocation;
+    }
+
+    /**
+     * Move files left in the old flat layout into the fan-out in the
+     * background once the engine starts.
+     *
+     * @param flatLayoutMigration
+     *            true to migrate
+     *
+     * @return this
+     */
+    public LocalFileStorageEngine withFlatLayoutMigration(
+            boolean flatLayoutMigration) {
+        this.flatLayoutMigration = flatLayoutMigration;
+        return this;
+    }
+
+    /**
+     * If the base location doesn't exist on disk, then go ahead and create it
+     * creating any parent directories as needed.
+     */
+    @Override
+    public void init() throws IOException {
+        createDirectory(baseLocation);
+
+        if (flatLayoutMigration) {
+            Thread migration = new Thread(() -> {
+                try {
+                    migrateFlatLayout();
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("flat layout migration failed: {}",
+                            e.getMessage(), e);
+                }
+            }, "upload-layout-migration");
+
+            migration.setDaemon(true);
+            migration.start();
+        }
+    }
+
+    /**
+     * Move every finished upload still sitting directly in the base location
+     * into its fan-out directory. The base location is streamed rather than
+     * listed in one go. Uploads still in progress are left to finish where
+     * they are.
+     *
+     * @return how many files were moved
+     *
+     * @throws IOException
+     */
+    public int migrateFlatLayout() throws IOException {
+        int moved = 0;
+
+        LOG.info("migrating flat upload layout in {}", baseLocation);
+
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths
+                .get(baseLocation))) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+
+                if (!Files.isRegularFile(entry) || name.length() < 4
+                        || name.endsWith(".part")) {
+                    continue;
+                }
+
+                Path target = getShardDirectory(name).toPath();
+                Files.createDirectories(target);
+
+                try {
+                    Files.move(entry, target.resolve(name),
+                            StandardCopyOption.ATOMIC_MOVE);
+                    moved++;
+                } catch (IOException e) {
+                    LOG.warn("could not migrate {}: {}", entry, e.getMessage());
+                }
+            }
+        }
+
+        LOG.info("migrated {} uploads into the fan-out layout", moved);
+
+        return moved;
+    }
+
+    @Override
+    public void create(Upload upload) throws IOException {
+        createDirectory(getShardDirectory(upload.getId()).getPath());
+
+        /*
+         * Either preallocate the target file for the chunks to be written
+         * into or create a directory to store the chunks in.
+         */
+
+        if (isPositional(upload)) {
+            preallocateFile(upload);
+        } else {
+            createDirectory(getChunkDirectoryPath(upload.getId()));
+        }
+    }
+
+    @Override
+    public ChunkWriter openChunk(Upload upload, int flowChunkNumber)
+            throws IOException {
+        if (isPositional(upload)) {
+            /*
+             * The target file was preallocated when the upload started so just
+             * write this chunk into its slot.
+             */
+            return newWriter(FileChannel.open(getPartFile(upload.getId())
+                    .toPath(), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE), getChunkOffset(upload,
+                    flowChunkNumber), getChunkLength(upload, flowChunkNumber));
+        }
+
+        return newWriter(FileChannel.open(
+                getChunkFile(upload.getId(), flowChunkNumber).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING),
+                0, getChunkLength(upload, flowChunkNumber));
+    }
+
+    /**
+     * Wrap an open channel in a writer for one chunk. The writer owns the
+     * channel.
+     *
+     * @param channel
+     * @param position
+     *            where the chunk starts in the channel
+     * @param length
+     *            how long the chunk is, or -1 if that isn't known
+     *
+     * @return
+     *
+     * @throws IOException
+     */
+    protected ChunkWriter newWriter(FileChannel channel, long position,
+            long length) throws IOException {
+        return new ChannelChunkWriter(channel, position, length);
+    }
+
+    @Override
+    public ReadableByteChannel readChunk(Upload upload, int flowChunkNumber)
+            throws IOException {
+        if (isPositional(upload)) {
+            long position = getChunkOffset(upload, flowChunkNumber);
+
+            return new RangeChannel(FileChannel.open(getPartFile(
+                    upload.getId()).toPath(), StandardOpenOption.READ),
+                    position, position
+                            + getChunkLength(upload, flowChunkNumber));
+        }
+
+        FileChannel in = FileChannel.open(
+                getChunkFile(upload.getId(), flowChunkNumber).toPath(),
+                StandardOpenOption.READ);
+
+        return new RangeChannel(in, 0, in.size());
+    }
+
+    @Override
+    public void commit(Upload upload) throws IOException {
+        if (isPositional(upload)) {
+            commitPositional(upload);
+        } else {
+            mergeChunks(upload);
+        }
+    }
+
+    @Override
+    public ReadableByteChannel readRange(String flowIdentifier, long position,
+            long length) throws IOException {
+        return new RangeChannel(FileChannel.open(getFile(flowIdentifier)
+                .toPath(), StandardOpenOption.READ), position, position
+                + length);
+    }
+
+    @Override
+    public long delete(String flowIdentifier) throws IOException {
+        File file = getFile(flowIdentifier);
+        File partFile = getPartFile(flowIdentifier);
+        long freed = file.length() + partFile.length();
+
+        Files.deleteIfExists(file.toPath());
+        Files.deleteIfExists(partFile.toPath());
+
+        File chunkDir = new File(getChunkDirectoryPath(flowIdentifier));
+
+        if (chunkDir.exists()) {
+            freed += FileUtils.sizeOfDirectory(chunkDir);
+            FileUtils.deleteDirectory(chunkDir);
+        }
+
+        return freed;
+    }
+
+    @Override
+    public StorageStat stat(String flowIdentifier) throws IOException {
+        File file = getFile(flowIdentifier);
+        boolean partial = getPartFile(flowIdentifier).exists()
+                || new File(getChunkDirectoryPath(flowIdentifier)).exists();
+
+        if (file.isFile()) {
+            return new StorageStat(true, partial, file.length(), file.toPath());
+        }
+
+        return new StorageStat(false, partial, -1, null);
+    }
+
+    @Override
+    public long getUsableSpace() throws IOException {
+        return Files.getFileStore(Paths.get(baseLocation)).getUsableSpace();
+    }
+
+    /**
+     * Create the named directory and any parent directories.
+     *
+     * @param directoryPath
+     *            the directory path to create
+     *
+     * @throws IOException
+     */
+    private void createDirectory(String directoryPath) throws IOException {
+        File dir = new File(directoryPath);
+
+        if (!dir.exists()) {
+            try {
+                dir.mkdirs();
+                return;
+            } catch (SecurityException e) {
+                LOG.error(e.getMessage(), e);
+                throw new IOException(e);
+            }
+        } else {
+            if (!dir.isDirectory()) {
+                /**
+                 * It exists but is a file?
+                 */
+                throw new IOException(String.format(
+                        "File name exists and is not a directory: %s",
+                        directoryPath));
+            }
+        }
+    }
+
+    /**
+     * Now that the chunks have all been uploaded, we need to merge them back
+     * into the original file. The chunks are copied into a part file in
+     * parallel by the merge engine which is then renamed to the final name.
+     *
+     * @param upload
+     *
+     * @throws IOException
+     */
+    private void mergeChunks(Upload upload) throws IOException {
+        List<File> chunkFiles = new ArrayList<>(upload.getTotalChunks());
+
+        for (int i = 1; i <= upload.getTotalChunks(); i++) {
+            chunkFiles.add(getChunkFile(upload.getId(), i));
+        }
+
+        File partFile = getPartFile(upload.getId());
+        File file = getFile(upload.getId());
+
+        /*
+         * An upload started before the fan-out still finishes in it.
+         */
+        createDirectory(partFile.getParent());
+        createDirectory(file.getParent());
+
+        mergeEngine.merge(chunkFiles, partFile);
+
+        Files.move(partFile.toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (File chunkFile : chunkFiles) {
+            chunkFile.delete();
+        }
+
+        File chunkDir = new File(getChunkDirectoryPath(upload.getId()));
+        chunkDir.delete();
+    }
+
+    /**
+     * All the chunks of a positional upload are already in place so finishing
+     * it is just a rename of the part file to the final name.
+     *
+     * @param upload
+     *
+     * @throws IOException
+     */
+    private void commitPositional(Upload upload) throws IOException {
+        File file = getFile(upload.getId());
+
+        createDirectory(file.getParent());
+
+        Files.move(getPartFile(upload.getId()).toPath(), file.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Create the target file for a positional upload at its full size. On most
+     * filesystems this is a sparse file so no blocks are written until the
+     * chunks arrive.
+     *
+     * @param u
+     *
+     * @throws IOException
+     */
+    private void preallocateFile(Upload u) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(getPartFile(u
+                .getId()), "rw")) {
+            raf.setLength(u.getTotalSize());
+        }
+    }
+
+    /**
+     * Was this upload started in positional mode? Records from before the
+     * storage mode was tracked are always chunked.
+     *
+     * @param u
+     *
+     * @return
+     */
+    protected boolean isPositional(Upload u) {
+        return u.getStorageMode() == StorageMode.POSITIONAL;
+    }
+
+    /**
+     * Where does this chunk start in the target file? Every chunk but the last
+     * is exactly the chunk size so this is all we need.
+     *
+     * @param u
+     * @param flowChunkNumber
+     *
+     * @return
+     */
+    protected long getChunkOffset(Upload u, int flowChunkNumber) {
+        return (long) (flowChunkNumber - 1) * u.getChunkSize();
+    }
+
+    /**
+     * How long is this chunk? The last chunk takes whatever is left over, so
+     * it can be longer than the chunk size.
+     *
+     * @param u
+     * @param flowChunkNumber
+     *
+     * @return the length, or -1 for older records without a chunk size
+     */
+    protected long getChunkLength(Upload u, int flowChunkNumber) {
+        if (u.getChunkSize() == null) {
+            return -1;
+        }
+
+        long offset = getChunkOffset(u, flowChunkNumber);
+
+        return flowChunkNumber == u.getTotalChunks() ? u.getTotalSize()
+                - offset : u.getChunkSize();
+    }
+
+    /**
+     * Get the in-progress File for an upload. It is only renamed to the final
+     * name once every chunk is in.
+     *
+     * @param flowIdentifier
+     *
+     * @return
+     */
+    private File getPartFile(String flowIdentifier) {
+        return locate(flowIdentifier + ".part");
+    }
+
+    /**
+     * Get a File for this flow.
+     *
+     * @param flowIdentifier
+     *
+     * @return
+     */
+    private File getFile(String flowIdentifier) {
+        return locate(flowIdentifier);
+    }
+
+    /**
+     * Get a File for this chunk of the flow.
+     *
+     * @param flowIdentifier
+     * @param flowChunkNumber
+     *
+     * @return
+     */
+    private File getChunkFile(String flowIdentifier, int flowChunkNumber) {
+        return new File(getChunkDirectoryPath(flowIdentifier)
+                + flowChunkNumber);
+    }
+
+    /**
+     * Given the flow, get the path that the chunks should be placed in.
+     *
+     * @param flowIdentifier
+     *
+     * @return
+     */
+    private String getChunkDirectoryPath(String flowIdentifier) {
+        return locate(flowIdentifier + ".chunk").getPath() + File.separator;
+    }
+
+    /**
+     * Find an entry for a flow. It lives in the fan-out unless it was left
+     * behind in the flat layout, so at most two paths are checked.
+     *
+     * @param name
+     *            the entry name, starting with the flowIdentifier
+     *
+     * @return where the entry is, or where it should go if it doesn't exist
+     */
+    private File locate(String name) {
+        File sharded = new File(getShardDirectory(name), name);
+
+        if (!sharded.exists()) {
+            File flat = new File(baseLocation, name);
+
+            if (flat.exists()) {
+                return flat;
+            }
+        }
+
+        return sharded;
+    }
+
+    /**
+     * The fan-out directory for a flow, {@code ab/cd} from the first four
+     * characters of the flowIdentifier.
+     *
+     * @param name
+     *            the flowIdentifier or an entry name starting with it
+     *
+     * @return
+     */
+    private File getShardDirectory(String name) {
+        if (name.length() < 4) {
+            return new File(baseLocation);
+        }
+
+        return new File(new File(baseLocation, name.substring(0, 2)),
+                name.substring(2, 4));
+    }
+
+    /**
+     * Writes a chunk through the FileChannel so streamed copies can be done by
+     * the kernel with transferFrom. Nothing is written past the end of the
+     * chunk's slot.
+     */
+    private static class ChannelChunkWriter implements ChunkWriter {
+
+        private final FileChannel out;
+
+        private final long length;
+
+        private final long end;
+
+        private long position;
+
+        ChannelChunkWriter(FileChannel out, long position, long length) {
+            this.out = out;
+            this.position = position;
+            this.length = length;
+            this.end = length < 0 ? Long.MAX_VALUE : position + length;
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            if (src.remaining() > end - position) {
+                throw new IOException(String.format(
+                        "chunk too long: expected %d bytes", length));
+            }
+
+            while (src.hasRemaining()) {
+                position += out.write(src, position);
+            }
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long count)
+                throws IOException {
+            long n = out.transferFrom(src, position,
+                    Math.min(count, end - position));
+            position += n;
+            return n;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+
+            if (length >= 0 && position != end) {
+                throw new IOException(String.format(
+                        "chunk truncated: expected %d bytes but got %d",
+                        length, length - (end - position)));
+            }
+        }
+    }
+
+    /**
+     * Reads a fixed range of a file.
+     */
+    private static class RangeChannel implements ReadableByteChannel {
+
+        private final FileChannel in;
+
+        private final long end;
+
+        private long position;
+
+        RangeChannel(FileChannel in, long position, long end) {
+            this.in = in;
+            this.position = position;
+            this.end = end;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+
+            ByteBuffer window = dst.duplicate();
+            window.limit(window.position()
+                    + (int) Math.min(window.remaining(), end - position));
+
+            int n = in.read(window, position);
+
+            if (n > 0) {
+                dst.position(dst.position() + n);
+                position += n;
+            }
+
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return in.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
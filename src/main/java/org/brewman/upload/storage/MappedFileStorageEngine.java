@@ -0,0 +1,146 @@
+package org.brewman.upload.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Map;
+
+/**
+ * The same layout as the local file engine but every chunk is written through
+ * a memory mapping of its region rather than with channel writes. The data is
+ * copied straight into the page cache with no system call per buffer.
+ *
+ * A chunk is forced out to disk as soon as it is closed, so it is durable
+ * before it is recorded. The mapping itself is released when the garbage
+ * collector gets to it. A short chunk is cut back to what was written and
+ * rejected.
+ *
+ * Older records without a chunk size fall back to plain channel writes.
+ *
+ * @author danielshiplett
+ */
+public class MappedFileStorageEngine extends LocalFileStorageEngine {
+
+    public MappedFileStorageEngine(String baseLocation, int mergeParallelism,
+            Map<String, Integer> volumeMergeParallelism) {
+        super(baseLocation, mergeParallelism, volumeMergeParallelism);
+    }
+
+    @Override
+    protected ChunkWriter newWriter(FileChannel channel, long position,
+            long length) throws IOException {
+        if (length < 0) {
+            return super.newWriter(channel, position, length);
+        }
+
+        /*
+         * Mapping past the end of the file grows it, so remember how big it
+         * was in case the chunk comes up short.
+         */
+        try {
+            long size = channel.size();
+
+            return new MappedChunkWriter(channel, position, size, channel.map(
+                    FileChannel.MapMode.READ_WRITE, position, length));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes a chunk into its mapped region.
+     */
+    private static class MappedChunkWriter implements ChunkWriter {
+
+        private final FileChannel channel;
+
+        private final long position;
+
+        private final long originalSize;
+
+        private final MappedByteBuffer region;
+
+        private boolean closed;
+
+        MappedChunkWriter(FileChannel channel, long position,
+                long originalSize, MappedByteBuffer region) {
+            this.channel = channel;
+            this.position = position;
+            this.originalSize = originalSize;
+            this.region = region;
+        }
+
+        @Override
+        public void write(ByteBuffer src) throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            if (src.remaining() > region.remaining()) {
+                throw new IOException(String.format(
+                        "chunk too long: expected %d bytes", region.capacity()));
+            }
+
+            region.put(src);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long count)
+                throws IOException {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+
+            ByteBuffer window = region.duplicate();
+            window.limit((int) Math.min(region.limit(), region.position()
+                    + count));
+
+            int n = src.read(window);
+
+            if (n > 0) {
+                region.position(region.position() + n);
+            }
+
+            return n;
+        }
+
+        @Override
+        public long getLength() {
+            return region.capacity();
+        }
+
+        /**
+         * Force a whole chunk out to disk, or cut a short one back to what was
+         * written and fail.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            int written = region.position();
+            boolean whole = !region.hasRemaining();
+
+            try {
+                if (whole) {
+                    region.force();
+                } else {
+                    channel.truncate(Math.max(originalSize, position + written));
+
+                    throw new IOException(String.format(
+                            "chunk truncated: expected %d bytes but got %d",
+                            region.capacity(), written));
+                }
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.brewman.upload.storage;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+import org.brewman.upload.domain.Upload;
+
+/**
+ * Everything the upload service needs from the place the bytes are kept. The
+ * upload protocol only ever goes through here, so storage strategies can be
+ * swapped without touching it.
+ * 
+ * Uploads are identified by their flowIdentifier. How chunks are laid out
+ * while receiving is up to the engine, guided by the Upload's storage mode.
+ * 
+ * @author danielshiplett
+ */
+public interface StorageEngine {
+
+    /**
+     * Get the storage ready for use.
+     * 
+     * @throws IOException
+     */
+    void init() throws IOException;
+
+    /**
+     * Set up the storage for a new upload.
+     * 
+     * @param upload
+     * 
+     * @throws IOException
+     */
+    void create(Upload upload) throws IOException;
+
+    /**
+     * Open a writer for a single chunk. Writing a chunk again replaces it.
+     * 
+     * @param upload
+     * @param flowChunkNumber
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    ChunkWriter openChunk(Upload upload, int flowChunkNumber)
+            throws IOException;
+
+    /**
+     * Read back a chunk that has been written.
+     * 
+     * @param upload
+     * @param flowChunkNumber
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    ReadableByteChannel readChunk(Upload upload, int flowChunkNumber)
+            throws IOException;
+
+    /**
+     * Every chunk is in. Turn them into the finished upload.
+     * 
+     * @param upload
+     * 
+     * @throws IOException
+     */
+    void commit(Upload upload) throws IOException;
+
+    /**
+     * Read part of a committed upload.
+     * 
+     * @param flowIdentifier
+     * @param position
+     * @param length
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    ReadableByteChannel readRange(String flowIdentifier, long position,
+            long length) throws IOException;
+
+    /**
+     * Remove everything stored for an upload, committed or not.
+     * 
+     * @param flowIdentifier
+     * 
+     * @return the number of bytes freed
+     * 
+     * @throws IOException
+     */
+    long delete(String flowIdentifier) throws IOException;
+
+    /**
+     * What is stored for an upload.
+     * 
+     * @param flowIdentifier
+     * 
+     * @return
+     * 
+     * @throws IOException
+     */
+    StorageStat stat(String flowIdentifier) throws IOException;
+
+    /**
+     * How much more can be stored.
+     * 
+     * @return the usable space left in bytes
+     * 
+     * @throws IOException
+     */
+    long getUsableSpace() throws IOException;
+}
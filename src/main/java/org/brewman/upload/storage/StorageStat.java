@@ -0,0 +1,62 @@
+package org.brewman.upload.storage;
+
+import java.nio.file.Path;
+
+/**
+ * What the storage engine knows about an upload.
+ * 
+ * @author danielshiplett
+ */
+public class StorageStat {
+
+    private final boolean complete;
+
+    private final boolean partial;
+
+    private final long size;
+
+    private final Path path;
+
+    public StorageStat(boolean complete, boolean partial, long size, Path path) {
+        this.complete = complete;
+        this.partial = partial;
+        this.size = size;
+        this.path = path;
+    }
+
+    /**
+     * @return true if the upload has been committed
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return true if there is storage for an upload still being received
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * @return true if there is anything stored at all
+     */
+    public boolean exists() {
+        return complete || partial;
+    }
+
+    /**
+     * @return the size of the committed upload, or -1 if not committed
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the local file holding the committed upload, or null if it
+     *         isn't a plain local file
+     */
+    public Path getPath() {
+        return path;
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * Where the bytes of an upload are kept.
+ */
+package org.brewman.upload.storage;
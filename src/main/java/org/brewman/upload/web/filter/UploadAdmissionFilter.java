@@ -0,0 +1,165 @@
+package org.brewman.upload.web.filter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the chunk writes a node takes on at once, both in number and in bytes still to arrive, so a burst of
+ * uploads queues up at the clients instead of thrashing the disks and the heap.
+ * <p>
+ * Chunk writes over either limit are turned away with a 429 and a Retry-After. Anything other than a POST or PUT
+ * (tests, identifiers, progress) is let straight through. A single chunk bigger than the whole byte budget is still
+ * let in on its own, so it can't be locked out forever.
+ * </p>
+ */
+public class UploadAdmissionFilter implements Filter {
+
+    private final Logger log = LoggerFactory.getLogger(UploadAdmissionFilter.class);
+
+    private final int maxConcurrentWrites;
+
+    private final long maxInFlightBytes;
+
+    private final long retryAfterSeconds;
+
+    private final MetricRegistry metricRegistry;
+
+    private final AtomicInteger writes = new AtomicInteger();
+
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    private final Meter rejected = new Meter();
+
+    public UploadAdmissionFilter(int maxConcurrentWrites, long maxInFlightBytes, long retryAfterSeconds,
+                                 MetricRegistry metricRegistry) {
+        this.maxConcurrentWrites = maxConcurrentWrites;
+        this.maxInFlightBytes = maxInFlightBytes;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.metricRegistry = metricRegistry;
+    }
+
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        if (metricRegistry == null) {
+            return;
+        }
+        metricRegistry.register(MetricRegistry.name(UploadAdmissionFilter.class, "writes"),
+            (Gauge<Integer>) writes::get);
+        metricRegistry.register(MetricRegistry.name(UploadAdmissionFilter.class, "writes", "max"),
+            (Gauge<Integer>) () -> maxConcurrentWrites);
+        metricRegistry.register(MetricRegistry.name(UploadAdmissionFilter.class, "inFlightBytes"),
+            (Gauge<Long>) inFlightBytes::get);
+        metricRegistry.register(MetricRegistry.name(UploadAdmissionFilter.class, "inFlightBytes", "max"),
+            (Gauge<Long>) () -> maxInFlightBytes);
+        metricRegistry.register(MetricRegistry.name(UploadAdmissionFilter.class, "rejected"), rejected);
+    }
+
+    @Override
+    public void destroy() {
+        // Nothing to destroy
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String method = httpRequest.getMethod();
+
+        if (!"POST".equals(method) && !"PUT".equals(method)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        long bytes = Math.max(0, request.getContentLengthLong());
+
+        if (!admit(bytes)) {
+            rejected.mark();
+            log.debug("Turning away {} {} ({} bytes): {} writes, {} bytes in flight", method,
+                httpRequest.getRequestURI(), bytes, writes.get(), inFlightBytes.get());
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+            httpResponse.sendError(HttpStatus.TOO_MANY_REQUESTS.value());
+            return;
+        }
+
+        Release release = new Release(bytes);
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            // A non-blocking read carries on after the chain returns, so it only counts as done once it completes
+            if (request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(release);
+            } else {
+                release.run();
+            }
+        }
+    }
+
+    private boolean admit(long bytes) {
+        if (writes.incrementAndGet() > maxConcurrentWrites) {
+            writes.decrementAndGet();
+            return false;
+        }
+        long total = inFlightBytes.addAndGet(bytes);
+        if (total > maxInFlightBytes && total != bytes) {
+            inFlightBytes.addAndGet(-bytes);
+            writes.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back what a write was admitted with, exactly once.
+     */
+    private class Release implements AsyncListener {
+
+        private final long bytes;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Release(long bytes) {
+            this.bytes = bytes;
+        }
+
+        void run() {
+            if (released.compareAndSet(false, true)) {
+                inFlightBytes.addAndGet(-bytes);
+                writes.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            run();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // Nothing to do
+        }
+    }
+}
@@ -8,15 +8,26 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.regex.Pattern;
 import java.util.zip.GZIPOutputStream;
 
 public class GZipServletFilter implements Filter {
 
+    /**
+     * Init parameter holding a pattern of request paths, relative to the context, that are never compressed.
+     */
+    public static final String EXCLUDED_PATHS = "excludedPaths";
+
     private Logger log = LoggerFactory.getLogger(GZipServletFilter.class);
 
+    private Pattern excludedPaths;
+
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        // Nothing to initialize
+        String excluded = filterConfig.getInitParameter(EXCLUDED_PATHS);
+        if (excluded != null) {
+            excludedPaths = Pattern.compile(excluded);
+        }
     }
 
     @Override
@@ -30,7 +41,7 @@ public class GZipServletFilter implements Filter {
         HttpServletRequest httpRequest = (HttpServletRequest) request;
         HttpServletResponse httpResponse = (HttpServletResponse) response;
 
-        if (!isIncluded(httpRequest) && acceptsGZipEncoding(httpRequest) && !response.isCommitted()) {
+        if (!isIncluded(httpRequest) && !isExcluded(httpRequest) && acceptsGZipEncoding(httpRequest) && !response.isCommitted()) {
             // Client accepts zipped content
             if (log.isTraceEnabled()) {
                 log.trace("{} Written with gzip compression", httpRequest.getRequestURL());
@@ -104,6 +115,15 @@ public class GZipServletFilter implements Filter {
         return includeRequest;
     }
 
+    /**
+     * Checks if the request is for a path that is sent as is, such as file downloads that are streamed or sent
+     * with sendfile and must not be buffered here.
+     */
+    private boolean isExcluded(final HttpServletRequest request) {
+        return excludedPaths != null
+            && excludedPaths.matcher(request.getRequestURI().substring(request.getContextPath().length())).matches();
+    }
+
     private boolean acceptsGZipEncoding(HttpServletRequest httpRequest) {
         String acceptEncoding = httpRequest.getHeader("Accept-Encoding");
         return acceptEncoding != null && acceptEncoding.contains("gzip");
@@ -1,20 +1,55 @@
 package org.brewman.upload.web.rest;
 
 import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
 import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.repository.UploadFilter;
 import org.brewman.upload.repository.UploadRepository;
+import org.brewman.upload.service.UploadContent;
+import org.brewman.upload.service.UploadService;
+import org.brewman.upload.web.rest.util.ByteRangeUtil;
+import org.brewman.upload.web.rest.util.CsvUtil;
+import org.brewman.upload.web.rest.util.PaginationUtil;
+import org.joda.time.LocalDate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * REST controller for managing Upload.
@@ -25,9 +60,32 @@ public class UploadResource {
 
     private final Logger log = LoggerFactory.getLogger(UploadResource.class);
 
+    private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    /*
+     * Between the day and the id in the after parameter. Not a comma, the Link header is split on those.
+     */
+    private static final char CURSOR_SEPARATOR = '_';
+
+    private static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+
     @Inject
     private UploadRepository uploadRepository;
 
+    @Inject
+    private UploadService uploadService;
+
+    @Inject
+    private ObjectMapper objectMapper;
+
     /**
      * POST  /uploads -> Create a new upload.
      */
@@ -61,15 +119,141 @@ public class UploadResource {
     }
 
     /**
-     * GET  /uploads -> get all the uploads.
+     * GET  /uploads -> get a page of the uploads, newest first.
+     *
+     * The next page is in the Link header. It carries on after the last upload of this one, in an "after" parameter
+     * of its uploadedAt day and id.
      */
     @RequestMapping(value = "/uploads",
             method = RequestMethod.GET,
             produces = MediaType.APPLICATION_JSON_VALUE)
     @Timed
-    public List<Upload> getAll() {
-        log.debug("REST request to get all Uploads");
-        return uploadRepository.findAll();
+    public ResponseEntity<List<Upload>> getAll(@RequestParam(value = "after", required = false) String after,
+                                               @RequestParam(value = "per_page", required = false) Integer limit,
+                                               @RequestParam(value = "state", required = false) UploadState state,
+                                               @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                                               @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to)
+        throws URISyntaxException {
+        log.debug("REST request to get a page of Uploads after {}", after);
+        UploadFilter filter = new UploadFilter().withState(state).withFrom(from).withTo(to);
+        if (after != null) {
+            int separator = after.indexOf(CURSOR_SEPARATOR);
+            if (separator < 0) {
+                return ResponseEntity.badRequest().header("Failure", "Malformed after parameter").body(null);
+            }
+            try {
+                String day = after.substring(0, separator);
+                filter.withAfter(day.isEmpty() ? null : LocalDate.parse(day), after.substring(separator + 1));
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().header("Failure", "Malformed after parameter").body(null);
+            }
+        }
+
+        /*
+         * One more than asked for, to know whether there is a next page.
+         */
+        int pageSize = PaginationUtil.generateKeysetLimit(limit);
+        List<Upload> uploads = uploadRepository.findPage(filter, pageSize + 1);
+        String next = null;
+        if (uploads.size() > pageSize) {
+            uploads = uploads.subList(0, pageSize);
+            Upload last = uploads.get(pageSize - 1);
+            next = (last.getUploadedAt() == null ? "" : last.getUploadedAt().toString()) + CURSOR_SEPARATOR + last.getId();
+        }
+
+        List<String> query = new ArrayList<>();
+        if (state != null) {
+            query.add("state=" + state.name());
+        }
+        if (from != null) {
+            query.add("from=" + from);
+        }
+        if (to != null) {
+            query.add("to=" + to);
+        }
+        HttpHeaders headers = PaginationUtil.generateKeysetPaginationHttpHeaders("/api/uploads",
+            String.join("&", query), next, pageSize);
+        return new ResponseEntity<>(uploads, headers, HttpStatus.OK);
+    }
+
+    /**
+     * GET  /uploads/export -> stream the uploads as NDJSON, one upload per line, or as CSV.
+     *
+     * They are written as they come off the cursor, so memory use stays the same however many there are. The
+     * export compresses itself when the client allows, the gzip filter would buffer all of it.
+     */
+    @RequestMapping(value = "/uploads/export",
+            method = RequestMethod.GET)
+    @Timed
+    public void export(@RequestParam(value = "format", defaultValue = "ndjson") String format,
+                       @RequestParam(value = "state", required = false) UploadState state,
+                       @RequestParam(value = "from", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+                       @RequestParam(value = "to", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to,
+                       HttpServletRequest request, HttpServletResponse response) throws IOException {
+        log.debug("REST request to export Uploads as {}", format);
+        boolean csv = "csv".equalsIgnoreCase(format);
+        if (!csv && !"ndjson".equalsIgnoreCase(format)) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown format: " + format);
+            return;
+        }
+        UploadFilter filter = new UploadFilter().withState(state).withFrom(from).withTo(to);
+
+        response.setContentType(csv ? CsvUtil.MEDIA_TYPE : NDJSON_MEDIA_TYPE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setHeader("Content-Disposition", "attachment; filename=\"uploads." + (csv ? "csv" : "ndjson") + "\"");
+        response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzip) {
+            response.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+
+        try (OutputStream out = gzip ? new GZIPOutputStream(response.getOutputStream(), TRANSFER_BUFFER_SIZE)
+            : response.getOutputStream()) {
+            if (csv) {
+                exportCsv(filter, out);
+            } else {
+                exportNdjson(filter, out);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Each upload as it is returned by GET /uploads/:id, minus the chunk bitmap, on a line of its own.
+     */
+    private void exportNdjson(UploadFilter filter, OutputStream out) throws IOException {
+        JsonGenerator generator = objectMapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        generator.setRootValueSeparator(null);
+        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+        uploadRepository.forEach(filter, upload -> {
+            try {
+                writer.writeValue(generator, upload);
+                generator.writeRaw('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        generator.flush();
+    }
+
+    private void exportCsv(UploadFilter filter, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), TRANSFER_BUFFER_SIZE);
+        CsvUtil.writeRecord(writer, "id", "originalName", "uploadedAt", "md5sum", "uploadComplete", "state",
+            "totalChunks", "totalSize", "chunkSize", "storageMode", "receivedChunks", "completedAt", "blobId",
+            "lastActivity");
+        uploadRepository.forEach(filter, upload -> {
+            try {
+                CsvUtil.writeRecord(writer, upload.getId(), upload.getOriginalName(), upload.getUploadedAt(),
+                    upload.getMd5sum(), upload.getUploadComplete(), upload.getState(), upload.getTotalChunks(),
+                    upload.getTotalSize(), upload.getChunkSize(), upload.getStorageMode(), upload.getReceivedChunks(),
+                    upload.getCompletedAt(), upload.getBlobId(), upload.getLastActivity());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.flush();
     }
 
     /**
@@ -88,6 +272,100 @@ public class UploadResource {
             .orElse(new ResponseEntity<>(HttpStatus.NOT_FOUND));
     }
 
+    /**
+     * GET  /uploads/:id/content -> download the content of the "id" upload.
+     *
+     * <p>
+     * Supports single and multiple byte ranges, If-None-Match and If-Range
+     * against the MD5SUM of the content. A whole file or a single range is
+     * handed to the container's sendfile when it has one, otherwise the file
+     * is transferred straight from its channel.
+     * </p>
+     */
+    @RequestMapping(value = "/uploads/{id}/content",
+            method = {RequestMethod.GET, RequestMethod.HEAD})
+    @Timed
+    public void getContent(@PathVariable String id, HttpServletRequest request, HttpServletResponse response)
+        throws IOException {
+        log.debug("REST request to get content of Upload : {}", id);
+        UploadContent content = uploadService.getContent(id);
+        if (content == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long length = content.getSize();
+        String md5sum = content.getUpload().getMd5sum();
+        String etag = md5sum == null ? null : "\"" + md5sum + "\"";
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, ByteRangeUtil.BYTES_UNIT);
+        if (etag != null) {
+            response.setHeader(HttpHeaders.ETAG, etag);
+        }
+        if (ByteRangeUtil.matchesETag(request.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        // A range is only honoured against the same content the client already has part of
+        List<long[]> ranges = ByteRangeUtil.parse(request.getHeader(HttpHeaders.RANGE), length);
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ranges != null && ifRange != null && !ifRange.trim().equals(etag)) {
+            ranges = null;
+        }
+        if (ranges != null && ranges.isEmpty()) {
+            response.setHeader(HttpHeaders.CONTENT_RANGE, ByteRangeUtil.unsatisfiedRange(length));
+            response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            return;
+        }
+
+        if (content.getUpload().getOriginalName() != null) {
+            response.setHeader("Content-Disposition", "attachment; filename*=UTF-8''"
+                + URLEncoder.encode(content.getUpload().getOriginalName(), "UTF-8").replace("+", "%20"));
+        }
+        boolean head = RequestMethod.HEAD.name().equals(request.getMethod());
+
+        if (ranges == null || ranges.size() == 1) {
+            long[] range = ranges == null ? new long[] {0, length - 1} : ranges.get(0);
+            if (ranges != null) {
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, ByteRangeUtil.contentRange(range, length));
+            }
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setContentLengthLong(ByteRangeUtil.length(range));
+            if (!head) {
+                sendRange(content, range, request, response);
+            }
+            return;
+        }
+
+        // Several ranges go out as multipart/byteranges, with each part's headers worked out up front
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>();
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        long contentLength = end.length;
+        for (long[] range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + MediaType.APPLICATION_OCTET_STREAM_VALUE + "\r\n"
+                + HttpHeaders.CONTENT_RANGE + ": " + ByteRangeUtil.contentRange(range, length) + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + ByteRangeUtil.length(range);
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (head) {
+            return;
+        }
+        OutputStream out = response.getOutputStream();
+        for (int i = 0; i < ranges.size(); i++) {
+            out.write(partHeaders.get(i));
+            transferRange(content, ranges.get(i), out);
+        }
+        out.write(end);
+    }
+
     /**
      * DELETE  /uploads/:id -> delete the "id" upload.
      */
@@ -95,8 +373,59 @@ public class UploadResource {
             method = RequestMethod.DELETE,
             produces = MediaType.APPLICATION_JSON_VALUE)
     @Timed
-    public void delete(@PathVariable String id) {
+    public void delete(@PathVariable String id) throws IOException {
         log.debug("REST request to delete Upload : {}", id);
-        uploadRepository.delete(id);
+        uploadService.deleteUpload(id);
+    }
+
+    /**
+     * Hands a single range to Tomcat's sendfile if the connector supports it and the content is a local file.
+     * The container then writes it from the file to the socket once the request returns.
+     */
+    private void sendRange(UploadContent content, long[] range, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        if (ByteRangeUtil.length(range) == 0) {
+            return;
+        }
+        if (content.getPath() != null && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+            request.setAttribute(SENDFILE_FILENAME, content.getPath().toAbsolutePath().toString());
+            request.setAttribute(SENDFILE_START, range[0]);
+            request.setAttribute(SENDFILE_END, range[1] + 1);
+            return;
+        }
+        transferRange(content, range, response.getOutputStream());
+    }
+
+    /**
+     * Writes a range with FileChannel.transferTo, or through the storage engine for content that isn't a local
+     * file.
+     */
+    private void transferRange(UploadContent content, long[] range, OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = range[0];
+        long remaining = ByteRangeUtil.length(range);
+        if (content.getPath() != null) {
+            try (FileChannel in = FileChannel.open(content.getPath(), StandardOpenOption.READ)) {
+                while (remaining > 0) {
+                    long n = in.transferTo(position, remaining, target);
+                    if (n <= 0) {
+                        throw new EOFException("Content of " + content.getStorageId() + " ended early");
+                    }
+                    position += n;
+                    remaining -= n;
+                }
+            }
+            return;
+        }
+        try (ReadableByteChannel in = content.open(position, remaining)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_BUFFER_SIZE);
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                buffer.clear();
+            }
+        }
     }
 }
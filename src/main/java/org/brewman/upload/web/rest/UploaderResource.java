@@ -1,17 +1,28 @@
 package org.brewman.upload.web.rest;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.util.List;
 import java.util.Optional;
 
 import javax.inject.Inject;
+import javax.servlet.http.HttpServletRequest;
 
 import org.brewman.upload.domain.Upload;
+import org.brewman.upload.service.ChunkBatchResult;
+import org.brewman.upload.service.ChunkOutOfRangeException;
+import org.brewman.upload.service.InsufficientStorageException;
 import org.brewman.upload.service.UploadService;
+import org.brewman.upload.web.rest.dto.ReceivedChunksDTO;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
@@ -29,6 +40,14 @@ public class UploaderResource {
     private final static Logger LOG = LoggerFactory
             .getLogger(UploaderResource.class);
 
+    /**
+     * Sent with every saved chunk so a client can tell how far along the
+     * upload is without testing chunks one at a time.
+     */
+    public static final String RECEIVED_CHUNKS_HEADER = "X-Upload-Received-Chunks";
+
+    public static final String TOTAL_CHUNKS_HEADER = "X-Upload-Total-Chunks";
+
     @Inject
     private UploadService uploadService;
 
@@ -73,17 +92,124 @@ public class UploaderResource {
         LOG.trace("flowTotalChunks: {}", flowTotalChunks);
         LOG.trace("flowTotalSize: {}", flowTotalSize);
 
+        Upload u;
+
         try {
-            Upload u = uploadService.saveChunk(flowIdentifier, flowChunkNumber,
+            u = uploadService.saveChunk(flowIdentifier, flowChunkNumber,
                     flowChunkSize, flowCurrentChunkSize, flowFilename,
                     flowTotalChunks, flowTotalSize, file);
             LOG.debug("upload: {}", u);
+        } catch (ChunkOutOfRangeException e) {
+            LOG.warn(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        return new ResponseEntity<>(flowIdentifier, progressHeaders(u),
+                HttpStatus.OK);
+    }
+
+    /**
+     * Save a single chunk sent as the raw request body. Skips the multipart
+     * parsing entirely so the chunk goes from the socket straight into the
+     * upload. The flow.js parameters travel in X-Flow-* headers and the chunk
+     * size is the Content-Length. The filename header is URL encoded.
+     * 
+     * @param flowIdentifier
+     * @param flowChunkNumber
+     * @param flowChunkSize
+     * @param flowFilename
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * @param request
+     * 
+     * @return
+     * 
+     * @throws Exception
+     */
+    @RequestMapping(value = "/uploader/{flowIdentifier}/chunks/{flowChunkNumber}", method = RequestMethod.PUT, consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<?> putChunk(
+            @PathVariable String flowIdentifier,
+            @PathVariable int flowChunkNumber,
+            @RequestHeader("X-Flow-Chunk-Size") int flowChunkSize,
+            @RequestHeader("X-Flow-Filename") String flowFilename,
+            @RequestHeader("X-Flow-Total-Chunks") int flowTotalChunks,
+            @RequestHeader("X-Flow-Total-Size") long flowTotalSize,
+            HttpServletRequest request) throws Exception {
+        LOG.info("/rest/upload: PUT: {} -- {} -- {}", flowIdentifier,
+                flowChunkNumber, flowTotalSize);
+
+        long size = request.getContentLengthLong();
+
+        if (size < 0) {
+            return new ResponseEntity<>(HttpStatus.LENGTH_REQUIRED);
+        }
+
+        Upload u;
+
+        try (InputStream in = request.getInputStream()) {
+            u = uploadService.saveChunk(flowIdentifier, flowChunkNumber,
+                    flowChunkSize, (int) size,
+                    URLDecoder.decode(flowFilename, "UTF-8"), flowTotalChunks,
+                    flowTotalSize, in, size);
+            LOG.debug("upload: {}", u);
+        } catch (ChunkOutOfRangeException e) {
+            LOG.warn(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+        }
+
+        return new ResponseEntity<>(flowIdentifier, progressHeaders(u),
+                HttpStatus.OK);
+    }
+
+    /**
+     * Save several chunks of the same upload in one multipart request. Send a
+     * flowChunkNumber parameter and a file part for each chunk, in the same
+     * order. The response lists what happened to each chunk so the failed ones
+     * can be sent again.
+     * 
+     * @param flowChunkSize
+     * @param flowFilename
+     * @param flowIdentifier
+     * @param flowTotalChunks
+     * @param flowTotalSize
+     * @param flowChunkNumbers
+     * @param files
+     * 
+     * @return
+     * 
+     * @throws Exception
+     */
+    @RequestMapping(value = "/uploader/batch", method = RequestMethod.POST)
+    public ResponseEntity<?> saveChunks(
+            @RequestParam("flowChunkSize") int flowChunkSize,
+            @RequestParam("flowFilename") String flowFilename,
+            @RequestParam("flowIdentifier") String flowIdentifier,
+            @RequestParam("flowTotalChunks") int flowTotalChunks,
+            @RequestParam("flowTotalSize") long flowTotalSize,
+            @RequestParam("flowChunkNumber") List<Integer> flowChunkNumbers,
+            @RequestParam("file") List<MultipartFile> files) throws Exception {
+        LOG.info("/rest/upload/batch: POST: {} -- {} -- {}", flowIdentifier,
+                flowChunkNumbers, flowTotalSize);
+
+        ChunkBatchResult result;
+
+        try {
+            result = uploadService.saveChunks(flowIdentifier, flowChunkSize,
+                    flowFilename, flowTotalChunks, flowTotalSize,
+                    flowChunkNumbers, files);
         } catch (IOException e) {
             LOG.error(e.getMessage());
             return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
         }
 
-        return new ResponseEntity<>(flowIdentifier, HttpStatus.OK);
+        return new ResponseEntity<>(result.getChunks(),
+                progressHeaders(result.getUpload()), HttpStatus.OK);
     }
 
     /**
@@ -98,7 +224,9 @@ public class UploaderResource {
      * @param flowRelativePath
      * @param flowTotalChunks
      * @param flowTotalSize
-     * @param file
+     * @param flowFileMd5
+     *            optional MD5SUM of the whole file, lets already stored
+     *            content complete without being sent
      * 
      * @return
      * 
@@ -113,7 +241,9 @@ public class UploaderResource {
             @RequestParam("flowIdentifier") String flowIdentifier,
             @RequestParam("flowRelativePath") String flowRelativePath,
             @RequestParam("flowTotalChunks") int flowTotalChunks,
-            @RequestParam("flowTotalSize") long flowTotalSize) throws Exception {
+            @RequestParam("flowTotalSize") long flowTotalSize,
+            @RequestParam(value = "flowFileMd5", required = false) String flowFileMd5)
+            throws Exception {
         LOG.trace("flowChunkNumber: {}", flowChunkNumber);
         LOG.trace("flowChunkSize: {}", flowChunkSize);
         LOG.trace("flowCurrentChunkSize: {}", flowCurrentChunkSize);
@@ -128,7 +258,13 @@ public class UploaderResource {
         try {
             b = uploadService.testChunk(flowIdentifier, flowChunkNumber,
                     flowChunkSize, flowCurrentChunkSize, flowFilename,
-                    flowTotalChunks, flowTotalSize);
+                    flowTotalChunks, flowTotalSize, flowFileMd5);
+        } catch (InsufficientStorageException e) {
+            /*
+             * Permanent for the client, there's no point sending any of it.
+             */
+            LOG.warn(e.getMessage());
+            return new ResponseEntity<>(HttpStatus.INSUFFICIENT_STORAGE);
         } catch (IOException e) {
             LOG.error(e.getMessage());
             return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
@@ -156,14 +292,36 @@ public class UploaderResource {
      * prevents multiple users from uploading a file of the same name and having
      * a collision.
      * 
-     * @param user
-     *            the current user
+     * A client that sends the MD5SUM of the file along with its flow
+     * parameters gets an upload that is already complete if that content is
+     * already stored.
+     * 
+     * @param flowFileMd5
+     * @param flowFilename
+     * @param flowChunkSize
+     * @param flowTotalChunks
+     * @param flowTotalSize
      * 
      * @return a new unique identifier
+     * 
+     * @throws IOException
      */
     @RequestMapping(value = "/uploader/getUniqueIdentifier", method = RequestMethod.GET)
-    public String getUniqueIdentifier() {
-        return uploadService.getAvailableIdentifier();
+    public String getUniqueIdentifier(
+            @RequestParam(value = "flowFileMd5", required = false) String flowFileMd5,
+            @RequestParam(value = "flowFilename", required = false) String flowFilename,
+            @RequestParam(value = "flowChunkSize", required = false) Integer flowChunkSize,
+            @RequestParam(value = "flowTotalChunks", required = false) Integer flowTotalChunks,
+            @RequestParam(value = "flowTotalSize", required = false) Long flowTotalSize)
+            throws IOException {
+        if (flowFileMd5 == null || flowFilename == null
+                || flowChunkSize == null || flowTotalChunks == null
+                || flowTotalSize == null) {
+            return uploadService.getAvailableIdentifier();
+        }
+
+        return uploadService.getAvailableIdentifier(flowFileMd5, flowFilename,
+                flowChunkSize, flowTotalChunks, flowTotalSize);
     }
 
     /**
@@ -180,4 +338,42 @@ public class UploaderResource {
                 .map(upload -> new ResponseEntity<Upload>(upload, HttpStatus.OK))
                 .orElse(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
     }
+
+    /**
+     * Get every chunk received so far for the specified upload in one go, so
+     * a resuming client doesn't need a test request per chunk.
+     * 
+     * @param flowIdentifier
+     * 
+     * @return the received chunks as runs of chunk numbers, or 404 if the
+     *         upload hasn't been started
+     */
+    @RequestMapping(value = "/uploader/upload/{flowIdentifier}/chunks", method = RequestMethod.GET)
+    public ResponseEntity<ReceivedChunksDTO> getReceivedChunks(
+            @PathVariable String flowIdentifier) {
+        return Optional
+                .ofNullable(uploadService.getUpload(flowIdentifier))
+                .map(upload -> new ResponseEntity<>(new ReceivedChunksDTO(
+                        upload), HttpStatus.OK))
+                .orElse(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+    /**
+     * The received and total chunk counts for a saved chunk response.
+     * 
+     * @param u
+     * 
+     * @return
+     */
+    private HttpHeaders progressHeaders(Upload u) {
+        HttpHeaders headers = new HttpHeaders();
+
+        if (u != null && u.getReceivedChunks() != null) {
+            headers.add(RECEIVED_CHUNKS_HEADER,
+                    String.valueOf(u.getReceivedChunks()));
+            headers.add(TOTAL_CHUNKS_HEADER, String.valueOf(u.getTotalChunks()));
+        }
+
+        return headers;
+    }
 }
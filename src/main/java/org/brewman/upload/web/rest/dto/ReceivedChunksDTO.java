@@ -0,0 +1,66 @@
+package org.brewman.upload.web.rest.dto;
+
+import java.util.List;
+
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.service.util.ChunkBitmap;
+
+/**
+ * Everything a resuming client needs to know about an upload in one response:
+ * the chunks received so far as inclusive {@code [first, last]} runs of
+ * 1-based chunk numbers.
+ */
+public class ReceivedChunksDTO {
+
+    private String flowIdentifier;
+
+    private UploadState state;
+
+    private int totalChunks;
+
+    private int receivedChunks;
+
+    private List<int[]> ranges;
+
+    public ReceivedChunksDTO(Upload upload) {
+        this.flowIdentifier = upload.getId();
+        this.state = upload.getState();
+        this.totalChunks = upload.getTotalChunks() != null ? upload
+                .getTotalChunks() : 0;
+        this.receivedChunks = upload.getReceivedChunks() != null ? upload
+                .getReceivedChunks() : 0;
+        this.ranges = ChunkBitmap.ranges(upload.getChunkBits(), totalChunks);
+    }
+
+    public String getFlowIdentifier() {
+        return flowIdentifier;
+    }
+
+    public UploadState getState() {
+        return state;
+    }
+
+    public int getTotalChunks() {
+        return totalChunks;
+    }
+
+    public int getReceivedChunks() {
+        return receivedChunks;
+    }
+
+    public List<int[]> getRanges() {
+        return ranges;
+    }
+
+    @Override
+    public String toString() {
+        return "ReceivedChunksDTO{" +
+                "flowIdentifier='" + flowIdentifier + '\'' +
+                ", state=" + state +
+                ", totalChunks=" + totalChunks +
+                ", receivedChunks=" + receivedChunks +
+                ", ranges=" + ranges.size() +
+                '}';
+    }
+}
@@ -0,0 +1,191 @@
+package org.brewman.upload.web.rest.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utility class for HTTP byte ranges.
+ *
+ * <p>
+ * Ranges follow <a href="http://tools.ietf.org/html/rfc7233">RFC 7233</a> and
+ * are returned as {@code {first, last}} pairs of inclusive byte offsets.
+ * </p>
+ */
+public final class ByteRangeUtil {
+
+    public static final String BYTES_UNIT = "bytes";
+
+    /**
+     * More ranges than this in one request are not worth answering piece by
+     * piece, the whole content is sent instead.
+     */
+    public static final int MAX_RANGES = 32;
+
+    private ByteRangeUtil() {
+    }
+
+    /**
+     * Parses a Range header against content of the given length.
+     *
+     * <p>
+     * Overlapping and adjacent ranges are coalesced so a client can't have the
+     * same bytes sent many times over.
+     * </p>
+     *
+     * @param header the Range header, may be null
+     * @param length the length of the content
+     * @return the ranges, merged where they touch, an empty list if none of
+     *         them can be satisfied, or null if the header should be ignored
+     *         and the whole content sent
+     */
+    public static List<long[]> parse(String header, long length) {
+        if (header == null) {
+            return null;
+        }
+
+        String value = header.trim();
+
+        if (!value.startsWith(BYTES_UNIT + "=")) {
+            return null;
+        }
+
+        String[] specs = value.substring(BYTES_UNIT.length() + 1).split(",");
+
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+
+        for (String spec : specs) {
+            String s = spec.trim();
+            int dash = s.indexOf('-');
+
+            if (dash < 0) {
+                return null;
+            }
+
+            long first;
+            long last;
+
+            try {
+                if (dash == 0) {
+                    long suffix = Long.parseLong(s.substring(1));
+
+                    if (suffix <= 0) {
+                        continue;
+                    }
+
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(s.substring(0, dash));
+                    last = dash == s.length() - 1 ? Long.MAX_VALUE : Long
+                            .parseLong(s.substring(dash + 1));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+
+            if (first < 0 || last < first) {
+                return null;
+            }
+
+            last = Math.min(last, length - 1);
+
+            if (first < length) {
+                ranges.add(new long[] { first, last });
+            }
+        }
+
+        return coalesce(ranges);
+    }
+
+    /**
+     * The number of bytes in a range.
+     *
+     * @param range an inclusive range
+     * @return its length
+     */
+    public static long length(long[] range) {
+        return range[1] - range[0] + 1;
+    }
+
+    /**
+     * The Content-Range value for a range.
+     *
+     * @param range an inclusive range
+     * @param length the length of the whole content
+     * @return the header value
+     */
+    public static String contentRange(long[] range, long length) {
+        return BYTES_UNIT + " " + range[0] + "-" + range[1] + "/" + length;
+    }
+
+    /**
+     * The Content-Range value for a request that can't be satisfied.
+     *
+     * @param length the length of the whole content
+     * @return the header value
+     */
+    public static String unsatisfiedRange(long length) {
+        return BYTES_UNIT + " */" + length;
+    }
+
+    /**
+     * Does an entity tag list from If-None-Match or If-Range match the
+     * current tag? Weak tags match by their opaque value.
+     *
+     * @param header the header, may be null
+     * @param etag the current entity tag, quotes included
+     * @return true if any of the tags, or *, matches
+     */
+    public static boolean matchesETag(String header, String etag) {
+        if (header == null || etag == null) {
+            return false;
+        }
+
+        for (String tag : header.split(",")) {
+            String t = tag.trim();
+
+            if (t.startsWith("W/")) {
+                t = t.substring(2);
+            }
+
+            if (t.equals("*") || t.equals(etag)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static List<long[]> coalesce(List<long[]> ranges) {
+        List<long[]> merged = new ArrayList<>();
+
+        for (long[] range : ranges) {
+            long[] current = range.clone();
+            boolean absorbed = true;
+
+            while (absorbed) {
+                absorbed = false;
+
+                for (int i = 0; i < merged.size(); i++) {
+                    long[] other = merged.get(i);
+
+                    if (current[0] <= other[1] + 1 && other[0] <= current[1] + 1) {
+                        current[0] = Math.min(current[0], other[0]);
+                        current[1] = Math.max(current[1], other[1]);
+                        merged.remove(i);
+                        absorbed = true;
+                        break;
+                    }
+                }
+            }
+
+            merged.add(current);
+        }
+
+        return merged;
+    }
+}
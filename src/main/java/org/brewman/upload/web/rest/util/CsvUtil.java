@@ -0,0 +1,51 @@
+package org.brewman.upload.web.rest.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Utility class for writing CSV.
+ *
+ * <p>
+ * Records follow <a href="http://tools.ietf.org/html/rfc4180">RFC 4180</a>: fields are separated by commas, records
+ * end with CRLF, and fields holding a comma, quote or line break are quoted with their quotes doubled.
+ * </p>
+ */
+public final class CsvUtil {
+
+    public static final String MEDIA_TYPE = "text/csv";
+
+    private CsvUtil() {
+    }
+
+    /**
+     * Writes one record.
+     *
+     * @param out where to write it
+     * @param fields the fields, null ones are left empty
+     */
+    public static void writeRecord(Writer out, Object... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            if (fields[i] != null) {
+                out.write(escape(fields[i].toString()));
+            }
+        }
+        out.write("\r\n");
+    }
+
+    /**
+     * Quotes a field if it needs to be.
+     */
+    public static String escape(String field) {
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            if (c == ',' || c == '"' || c == '\r' || c == '\n') {
+                return '"' + field.replace("\"", "\"\"") + '"';
+            }
+        }
+        return field;
+    }
+}
@@ -63,4 +63,36 @@ public class PaginationUtil {
         headers.add(HttpHeaders.LINK, link);
         return headers;
     }
+
+    public static int generateKeysetLimit(Integer limit) {
+        if (limit == null || limit < 1 || limit > MAX_LIMIT) {
+            limit = DEFAULT_LIMIT;
+        }
+        return limit;
+    }
+
+    /**
+     * Links for a listing paged by where the last page ended rather than by page number. There is no total or last
+     * page, only the first page and, unless this is the last one, the next.
+     *
+     * @param baseUrl the listing
+     * @param query the encoded filter parameters to keep, or an empty string
+     * @param after where the next page starts, or null if there is none
+     * @param limit the page size
+     */
+    public static HttpHeaders generateKeysetPaginationHttpHeaders(String baseUrl, String query, String after, Integer limit)
+        throws URISyntaxException {
+
+        String params = query + (query.isEmpty() ? "" : "&") + "per_page=" + generateKeysetLimit(limit);
+        HttpHeaders headers = new HttpHeaders();
+        String link = "";
+        if (after != null) {
+            link = "<" + (new URI(baseUrl + "?" + params + "&after=" + after)).toString()
+                + ">; rel=\"next\",";
+        }
+        link += "<" + (new URI(baseUrl + "?" + params)).toString()
+            + ">; rel=\"first\"";
+        headers.add(HttpHeaders.LINK, link);
+        return headers;
+    }
 }
@@ -0,0 +1,322 @@
+package org.brewman.upload.web.servlet;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.service.ChunkOutOfRangeException;
+import org.brewman.upload.service.ChunkSink;
+import org.brewman.upload.service.UploadService;
+import org.brewman.upload.web.rest.UploaderResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.support.WebApplicationContextUtils;
+
+/**
+ * Takes a raw chunk body with non-blocking reads, so a slow client doesn't
+ * hold a container thread while its chunk trickles in. The thread goes back
+ * to the pool between reads and the data is written as it arrives.
+ * 
+ * Same contract as the PUT on {@link UploaderResource}:
+ * {@code PUT /api/uploader/stream/{flowIdentifier}/chunks/{flowChunkNumber}}
+ * with the flow.js parameters in X-Flow-* headers and the chunk size as the
+ * Content-Length.
+ * 
+ * @author danielshiplett
+ */
+public class AsyncChunkUploadServlet extends HttpServlet {
+
+    private final static Logger LOG = LoggerFactory
+            .getLogger(AsyncChunkUploadServlet.class);
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long timeout;
+
+    private UploadService uploadService;
+
+    /**
+     * @param timeout
+     *            how long (ms) a chunk may take to arrive
+     */
+    public AsyncChunkUploadServlet(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Look up the UploadService from the application context.
+     */
+    @Override
+    public void init() throws ServletException {
+        uploadService = WebApplicationContextUtils
+                .getRequiredWebApplicationContext(getServletContext())
+                .getBean(UploadService.class);
+    }
+
+    /**
+     * Open the chunk and then read its body asynchronously. Anything wrong
+     * with the request is answered straight away, before any data is read.
+     * 
+     * @param request
+     * @param response
+     * 
+     * @throws IOException
+     */
+    @Override
+    protected void doPut(HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        String[] path = request.getPathInfo() == null ? new String[0]
+                : request.getPathInfo().split("/");
+
+        if (path.length != 4 || !"chunks".equals(path[2])) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        String flowIdentifier = path[1];
+        long size = request.getContentLengthLong();
+
+        if (size < 0) {
+            response.sendError(HttpServletResponse.SC_LENGTH_REQUIRED);
+            return;
+        }
+
+        ChunkSink sink;
+
+        try {
+            sink = uploadService.openChunk(flowIdentifier,
+                    Integer.parseInt(path[3]),
+                    Integer.parseInt(header(request, "X-Flow-Chunk-Size")),
+                    (int) size, URLDecoder.decode(
+                            header(request, "X-Flow-Filename"), "UTF-8"),
+                    Integer.parseInt(header(request, "X-Flow-Total-Chunks")),
+                    Long.parseLong(header(request, "X-Flow-Total-Size")));
+        } catch (IllegalArgumentException | ChunkOutOfRangeException e) {
+            LOG.warn(e.getMessage());
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        } catch (IOException e) {
+            LOG.error(e.getMessage());
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return;
+        }
+
+        /*
+         * The sink holds the chunk open from here on. If the request can't be
+         * handed over to the reader then nothing else will ever abort it.
+         */
+        ChunkReader reader = null;
+
+        try {
+            AsyncContext async = request.startAsync();
+            async.setTimeout(timeout);
+
+            reader = new ChunkReader(flowIdentifier, sink,
+                    request.getInputStream(), async);
+            async.addListener(reader);
+            request.getInputStream().setReadListener(reader);
+        } catch (IOException | RuntimeException e) {
+            if (reader != null) {
+                reader.fail(e);
+                return;
+            }
+
+            LOG.error(e.getMessage());
+            sink.abort();
+
+            if (request.isAsyncStarted()) {
+                response.setStatus(
+                        HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                request.getAsyncContext().complete();
+            } else {
+                response.sendError(
+                        HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+        }
+    }
+
+    /**
+     * Get a required header.
+     * 
+     * @param request
+     * @param name
+     * 
+     * @return
+     * 
+     * @throws IllegalArgumentException
+     *             if the header is missing
+     */
+    private static String header(HttpServletRequest request, String name) {
+        String value = request.getHeader(name);
+
+        if (value == null) {
+            throw new IllegalArgumentException("missing header " + name);
+        }
+
+        return value;
+    }
+
+    /**
+     * Moves whatever is readable into the sink each time the container says
+     * there is data, and finishes the request once it has all arrived.
+     */
+    private static class ChunkReader implements ReadListener, AsyncListener {
+
+        private final String flowIdentifier;
+
+        private final ChunkSink sink;
+
+        private final ServletInputStream in;
+
+        private final AsyncContext async;
+
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        ChunkReader(String flowIdentifier, ChunkSink sink,
+                ServletInputStream in, AsyncContext async) {
+            this.flowIdentifier = flowIdentifier;
+            this.sink = sink;
+            this.in = in;
+            this.async = async;
+        }
+
+        /**
+         * Read until the container has nothing more for now.
+         */
+        @Override
+        public void onDataAvailable() throws IOException {
+            try {
+                while (in.isReady() && !in.isFinished()) {
+                    int n = in.read(buffer);
+
+                    if (n < 0) {
+                        break;
+                    }
+
+                    sink.write(ByteBuffer.wrap(buffer, 0, n));
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Commit the chunk and answer as the PUT on UploaderResource does.
+         */
+        @Override
+        public void onAllDataRead() throws IOException {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+
+            HttpServletResponse response = (HttpServletResponse) async
+                    .getResponse();
+
+            try {
+                Upload u = sink.commit();
+                LOG.debug("upload: {}", u);
+
+                if (u != null && u.getReceivedChunks() != null) {
+                    response.setHeader(UploaderResource.RECEIVED_CHUNKS_HEADER,
+                            String.valueOf(u.getReceivedChunks()));
+                    response.setHeader(UploaderResource.TOTAL_CHUNKS_HEADER,
+                            String.valueOf(u.getTotalChunks()));
+                }
+
+                response.setContentType("text/plain");
+                response.getWriter().write(flowIdentifier);
+            } catch (IOException | RuntimeException e) {
+                LOG.error(e.getMessage());
+                sink.abort();
+                response.setStatus(
+                        HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } finally {
+                async.complete();
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see javax.servlet.ReadListener#onError(java.lang.Throwable)
+         */
+        @Override
+        public void onError(Throwable t) {
+            fail(t);
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see javax.servlet.AsyncListener#onTimeout(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            fail(new IOException("timed out waiting for chunk data"));
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see javax.servlet.AsyncListener#onError(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            fail(event.getThrowable());
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see javax.servlet.AsyncListener#onComplete(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see
+         * javax.servlet.AsyncListener#onStartAsync(javax.servlet.AsyncEvent)
+         */
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        /**
+         * Abort the chunk and end the request with a 500, unless it has
+         * already been finished one way or the other.
+         * 
+         * @param t
+         *            what went wrong
+         */
+        private void fail(Throwable t) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+
+            LOG.warn("chunk upload failed: {} -- {}", flowIdentifier,
+                    t == null ? null : t.getMessage());
+            sink.abort();
+
+            ((HttpServletResponse) async.getResponse())
+                    .setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            async.complete();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package org.brewman.upload.web.servlet;
+
+import com.codahale.metrics.Timer;
+import org.brewman.upload.service.UploadMetrics;
+import org.springframework.web.multipart.MultipartException;
+import org.springframework.web.multipart.MultipartHttpServletRequest;
+import org.springframework.web.multipart.support.StandardServletMultipartResolver;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * The standard Servlet 3.0 multipart resolver, with the time it takes to parse each request recorded as the
+ * multipart parse phase of the upload pipeline.
+ */
+public class TimedMultipartResolver extends StandardServletMultipartResolver {
+
+    private final UploadMetrics uploadMetrics;
+
+    public TimedMultipartResolver(UploadMetrics uploadMetrics) {
+        this.uploadMetrics = uploadMetrics;
+    }
+
+    @Override
+    public MultipartHttpServletRequest resolveMultipart(HttpServletRequest request) throws MultipartException {
+        try (Timer.Context ignored = uploadMetrics.time(UploadMetrics.Phase.MULTIPART_PARSE)) {
+            return super.resolveMultipart(request);
+        }
+    }
+}
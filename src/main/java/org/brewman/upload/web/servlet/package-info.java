@@ -0,0 +1,5 @@
+/**
+ * Servlets that are registered outside of Spring MVC, and servlet level pieces
+ * plugged into it.
+ */
+package org.brewman.upload.web.servlet;
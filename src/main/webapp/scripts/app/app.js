@@ -53,7 +53,10 @@ angular.module('uploadExampleApp', ['LocalStorageModule', 'tmh.dynamicLocale',
                                     			forceChunkSize: true,
                                     			simultaneousUploads: 8,
                                     			singleFile: true,
-                                    			permanentErrors:[415, 500, 501],
+                                    			permanentErrors:[415, 500, 501, 507],
+                                    			// Busy nodes answer 429, so back off and try again
+                                    			maxChunkRetries: 30,
+                                    			chunkRetryInterval: 1000,
                                     			generateUniqueIdentifier: function () {
                                     				var request = new XMLHttpRequest();
                                     				request.open("GET","api/uploader/getUniqueIdentifier",false);
@@ -1,13 +1,26 @@
 'use strict';
 
 angular.module('uploadExampleApp')
-    .controller('UploadController', function ($scope, Upload) {
+    .controller('UploadController', function ($scope, Upload, ParseLinks) {
         $scope.uploads = [];
+        $scope.after = null;
         $scope.loadAll = function() {
-            Upload.query(function(result) {
-               $scope.uploads = result;
+            Upload.query({after: $scope.after, per_page: 20}, function(result, headers) {
+                $scope.links = ParseLinks.parse(headers('link'));
+                for (var i = 0; i < result.length; i++) {
+                    $scope.uploads.push(result[i]);
+                }
             });
         };
+        $scope.reset = function() {
+            $scope.after = null;
+            $scope.uploads = [];
+            $scope.loadAll();
+        };
+        $scope.loadPage = function(after) {
+            $scope.after = after;
+            $scope.loadAll();
+        };
         $scope.loadAll();
 
         $scope.showUpdate = function (id) {
@@ -41,14 +54,14 @@ angular.module('uploadExampleApp')
         $scope.confirmDelete = function (id) {
             Upload.delete({id: id},
                 function () {
-                    $scope.loadAll();
+                    $scope.reset();
                     $('#deleteUploadConfirmation').modal('hide');
                     $scope.clear();
                 });
         };
 
         $scope.refresh = function () {
-            $scope.loadAll();
+            $scope.reset();
             $('#saveUploadModal').modal('hide');
             $scope.clear();
         };
@@ -1,8 +1,9 @@
 'use strict';
 
 angular.module('uploadExampleApp')
-.controller('UploaderController', function ($scope, $cookies, Upload) {
+.controller('UploaderController', function ($scope, $cookies, $timeout, Upload) {
 	$scope.upload = null;
+	$scope.finalizing = false;
 	$scope.fileUuid = null;
 	$scope.flow = null;
 	
@@ -37,8 +38,22 @@ angular.module('uploadExampleApp')
     	$scope.flow = $flow;
     	$scope.fileUuid = $flow.files[0].uniqueIdentifier;
     	
+    	pollUpload();
+    };
+
+    /*
+     * The file is put together in the background once the last chunk is in,
+     * so keep asking until it is COMPLETE or FAILED.
+     */
+    var pollUpload = function() {
     	Upload.get({id: $scope.fileUuid}, function(result) {
-            $scope.upload = result;
+    		if (result.state === 'RECEIVING' || result.state === 'FINALIZING') {
+    			$scope.finalizing = true;
+    			$timeout(pollUpload, 1000);
+    		} else {
+    			$scope.finalizing = false;
+    			$scope.upload = result;
+    		};
         });
     };
     
@@ -48,6 +63,7 @@ angular.module('uploadExampleApp')
     $scope.remove = function() { 
     	$scope.upload = null;
     	$scope.fileUuid = null;
+    	$scope.finalizing = false;
     	
     	if($scope.flow != null) {
     		$scope.flow.cancel();
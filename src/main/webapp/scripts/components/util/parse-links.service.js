@@ -26,6 +26,10 @@ angular.module('uploadExampleApp')
                 if( angular.isString(page) ) {
                     page = parseInt(page);
                 }
+                // Keyset paged listings link to where the next page starts instead
+                if( angular.isDefined(queryString['after']) ) {
+                    page = decodeURIComponent(queryString['after']);
+                }
                 var name = section[1].replace(/rel="(.*)"/, '$1').trim();
                 links[name] = page;
             });
@@ -0,0 +1,220 @@
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+import _root_.io.gatling.core.scenario.Simulation
+import ch.qos.logback.classic.{Level, LoggerContext}
+import io.gatling.core.Predef._
+import io.gatling.http.Predef._
+import org.slf4j.LoggerFactory
+
+import scala.concurrent.duration._
+import scala.util.Random
+
+/**
+ * Performance test for the uploader, driving the flow.js protocol the way the browser does: get an identifier,
+ * then test and send every chunk, a few chunks at a time.
+ *
+ * Every file is sent by simultaneousChunks virtual users, one per flow.js upload slot, which take the chunks in
+ * turn. Some of them pause half way and resume by testing the chunk they last sent, and some send a chunk twice as
+ * a client retrying after a lost response would. Whoever sends the last chunk waits for the upload to be finalized.
+ *
+ * The latency percentiles are per request ("Save chunk", "Test chunk") and for the "Finalize" group. The sustained
+ * upload rate is printed at the end.
+ *
+ * Run the application against an embedded Mongo with
+ * mvn test-compile exec:java -Dexec.mainClass=org.brewman.upload.Application -Dexec.classpathScope=test
+ * then
+ * mvn gatling:execute -Dgatling.simulationClass=UploaderGatlingTest -Dfiles=20 -DfileSize=67108864
+ */
+class UploaderGatlingTest extends Simulation {
+
+    val context: LoggerContext = LoggerFactory.getILoggerFactory.asInstanceOf[LoggerContext]
+    // Log all HTTP requests
+    //context.getLogger("io.gatling.http").setLevel(Level.valueOf("TRACE"))
+    // Log failed HTTP requests
+    //context.getLogger("io.gatling.http").setLevel(Level.valueOf("DEBUG"))
+
+    val baseURL = Option(System.getProperty("baseURL")) getOrElse """http://127.0.0.1:8080"""
+
+    def property(name: String, default: String) = Option(System.getProperty(name)) getOrElse default
+
+    val files = property("files", "10").toInt
+    val fileSize = property("fileSize", "67108864").toLong
+    val chunkSize = property("chunkSize", "1048576").toInt
+    val simultaneousChunks = property("simultaneousChunks", "8").toInt
+    val rampSeconds = property("rampSeconds", "60").toInt
+    // Share of the upload slots that pause half way, and for how long
+    val pauseRatio = property("pauseRatio", "0.1").toDouble
+    val pauseSeconds = property("pauseSeconds", "5").toInt
+    // Share of the chunks that are sent twice
+    val duplicateRatio = property("duplicateRatio", "0.02").toDouble
+
+    // flow.js with forceChunkSize: every chunk is chunkSize bytes but the last
+    val totalChunks = ((fileSize + chunkSize - 1) / chunkSize).toInt
+
+    def chunkLength(flowChunkNumber: Int) = math.min(chunkSize.toLong, fileSize - (flowChunkNumber - 1).toLong * chunkSize).toInt
+
+    val chunk = new Array[Byte](chunkSize)
+    new Random(42).nextBytes(chunk)
+    val lastChunk = chunk.take(chunkLength(totalChunks))
+
+    // The identifier of every file, handed from the slot that asked for it to the others
+    val identifiers = new ConcurrentHashMap[Int, String]()
+    // The files whose finalization is already being waited for
+    val finalizing = ConcurrentHashMap.newKeySet[String]()
+
+    val bytesSent = new AtomicLong()
+    val firstChunkAt = new AtomicLong()
+    val lastChunkAt = new AtomicLong()
+
+    val httpConf = http
+        .baseURL(baseURL)
+        .acceptHeader("*/*")
+        .acceptEncodingHeader("gzip, deflate")
+        .acceptLanguageHeader("fr,fr-fr;q=0.8,en-us;q=0.5,en;q=0.3")
+        .connection("keep-alive")
+        .userAgentHeader("Mozilla/5.0 (Macintosh; Intel Mac OS X 10.10; rv:33.0) Gecko/20100101 Firefox/33.0")
+
+    val headers_http = Map(
+        "Accept" -> """application/json"""
+    )
+
+    val headers_http_authenticated = Map(
+        "Accept" -> """application/json""",
+        "X-CSRF-TOKEN" -> "${csrf_token}"
+    )
+
+    val flowParams = Seq("flowChunkNumber", "flowChunkSize", "flowCurrentChunkSize", "flowFilename",
+        "flowIdentifier", "flowRelativePath", "flowTotalChunks", "flowTotalSize")
+
+    // One virtual user per upload slot, the slots of a file come one after the other
+    val slots = Iterator.from(0).map(user => Map("file" -> user / simultaneousChunks, "slot" -> user % simultaneousChunks))
+
+    val testChunk = flowParams.foldLeft(http("Test chunk")
+        .get("/api/uploader")
+        .headers(headers_http_authenticated)) { (request, name) => request.queryParam(name, "${" + name + "}") }
+        .check(status.in(200, 502).saveAs("testStatus"))
+
+    val saveChunk = (name: String) => flowParams.foldLeft(http(name)
+        .post("/api/uploader")
+        .headers(headers_http_authenticated)) { (request, name) => request.bodyPart(StringBodyPart(name, "${" + name + "}")) }
+        .bodyPart(ByteArrayBodyPart("file", session => if (session("flowChunkNumber").as[Int] == totalChunks) lastChunk else chunk)
+            .fileName("blob")
+            .contentType("application/octet-stream"))
+        .check(status.is(200))
+        .check(header("X-Upload-Received-Chunks").saveAs("receivedChunks"))
+
+    val countChunk = exec(session => {
+        val now = System.currentTimeMillis
+        firstChunkAt.compareAndSet(0, now)
+        lastChunkAt.set(now)
+        bytesSent.addAndGet(session("flowCurrentChunkSize").as[Int])
+        session
+    })
+
+    val awaitFinalization = exec(session => session.set("state", ""))
+        .group("Finalize") {
+            asLongAs(session => session("state").as[String] != "COMPLETE") {
+                pause(100 milliseconds)
+                .exec(http("Get upload")
+                .get("/api/uploader/upload/${flowIdentifier}")
+                .headers(headers_http_authenticated)
+                .check(status.is(200))
+                .check(jsonPath("$.state").saveAs("state")))
+                .exitHereIfFailed
+            }
+        }
+
+    val scn = scenario("Upload files with flow.js")
+        .feed(slots)
+        .exec(http("First unauthenticated request")
+        .get("/api/account")
+        .headers(headers_http)
+        .check(status.is(401))
+        .check(headerRegex("Set-Cookie", "CSRF-TOKEN=(.*); [P,p]ath=/").saveAs("csrf_token")))
+        .exec(http("Authentication")
+        .post("/api/authentication")
+        .headers(headers_http_authenticated)
+        .formParam("j_username", "admin")
+        .formParam("j_password", "admin")
+        .formParam("remember-me", "true")
+        .formParam("submit", "Login"))
+        .exec(http("Authenticated request")
+        .get("/api/account")
+        .headers(headers_http_authenticated)
+        .check(status.is(200))
+        .check(headerRegex("Set-Cookie", "CSRF-TOKEN=(.*); [P,p]ath=/").saveAs("csrf_token")))
+        .doIfOrElse(session => session("slot").as[Int] == 0) {
+            exec(http("Get unique identifier")
+            .get("/api/uploader/getUniqueIdentifier")
+            .headers(headers_http_authenticated)
+            .check(status.is(200))
+            .check(bodyString.saveAs("flowIdentifier")))
+            .exitHereIfFailed
+            .exec(session => {
+                identifiers.put(session("file").as[Int], session("flowIdentifier").as[String])
+                session
+            })
+        } {
+            asLongAs(session => !identifiers.containsKey(session("file").as[Int])) {
+                pause(100 milliseconds)
+            }
+            .exec(session => session.set("flowIdentifier", identifiers.get(session("file").as[Int])))
+        }
+        .exec(session => {
+            val slot = session("slot").as[Int]
+            val chunks = math.max(0, (totalChunks - slot + simultaneousChunks - 1) / simultaneousChunks)
+            session
+                .set("flowChunkSize", chunkSize)
+                .set("flowTotalChunks", totalChunks)
+                .set("flowTotalSize", fileSize)
+                .set("flowFilename", "gatling-" + session("file").as[Int] + ".bin")
+                .set("flowRelativePath", "gatling-" + session("file").as[Int] + ".bin")
+                .set("chunks", chunks)
+                .set("pauseAt", if (chunks > 1 && Random.nextDouble < pauseRatio) chunks / 2 else -1)
+        })
+        .repeat("${chunks}", "i") {
+            exec(session => {
+                val flowChunkNumber = session("slot").as[Int] + 1 + session("i").as[Int] * simultaneousChunks
+                session
+                    .set("flowChunkNumber", flowChunkNumber)
+                    .set("flowCurrentChunkSize", chunkLength(flowChunkNumber))
+            })
+            .doIf(session => session("i").as[Int] == session("pauseAt").as[Int]) {
+                // Paused, on resume flow.js tests the chunks again before sending anything
+                pause(pauseSeconds seconds)
+                .exec(session => session.set("flowChunkNumber", session("flowChunkNumber").as[Int] - simultaneousChunks)
+                    .set("flowCurrentChunkSize", chunkSize))
+                .exec(testChunk.check(status.is(200)))
+                .exec(session => session.set("flowChunkNumber", session("flowChunkNumber").as[Int] + simultaneousChunks)
+                    .set("flowCurrentChunkSize", chunkLength(session("flowChunkNumber").as[Int] + simultaneousChunks)))
+            }
+            .exec(testChunk)
+            .doIf(session => session("testStatus").as[Int] != 200) {
+                exec(saveChunk("Save chunk"))
+                .exitHereIfFailed
+                .exec(countChunk)
+                .doIf(session => Random.nextDouble < duplicateRatio) {
+                    exec(saveChunk("Save duplicate chunk"))
+                }
+                .doIf(session => session("receivedChunks").as[String].toInt == totalChunks
+                    && finalizing.add(session("flowIdentifier").as[String])) {
+                    exec(awaitFinalization)
+                }
+            }
+        }
+
+    val users = scenario("Users").exec(scn)
+
+    setUp(
+        users.inject(rampUsers(files * simultaneousChunks) over (rampSeconds seconds))
+    ).protocols(httpConf)
+
+    after {
+        val seconds = (lastChunkAt.get - firstChunkAt.get) / 1000.0
+        if (seconds > 0) {
+            println("Sustained upload rate: %.1f MB/s (%d MB in %.1f s)".format(
+                bytesSent.get / seconds / 1024 / 1024, bytesSent.get / 1024 / 1024, seconds))
+        }
+    }
+}
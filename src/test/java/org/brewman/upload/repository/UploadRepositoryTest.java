@@ -0,0 +1,193 @@
+package org.brewman.upload.repository;
+
+import org.brewman.upload.Application;
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the custom operations of the UploadRepository.
+ *
+ * @see UploadRepositoryImpl
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest
+public class UploadRepositoryTest {
+
+    private static final int TOTAL_CHUNKS = 40;
+
+    @Inject
+    private UploadRepository uploadRepository;
+
+    private Upload upload;
+
+    @Before
+    public void initTest() {
+        uploadRepository.deleteAll();
+        upload = new Upload();
+        upload.setState(UploadState.RECEIVING);
+        upload.setTotalChunks(TOTAL_CHUNKS);
+        upload.setReceivedChunks(0);
+        upload.setChunkBits(ChunkBitmap.create(TOTAL_CHUNKS));
+        uploadRepository.save(upload);
+    }
+
+    @Test
+    public void testRecordChunk() {
+        Upload updated = uploadRepository.recordChunk(upload.getId(), 33);
+
+        assertThat(updated.getReceivedChunks()).isEqualTo(1);
+        assertThat(ChunkBitmap.isSet(updated.getChunkBits(), 33)).isTrue();
+        assertThat(updated.getLastActivity()).isNotNull();
+    }
+
+    @Test
+    public void testDuplicateReceiptIsNotCounted() {
+        uploadRepository.recordChunk(upload.getId(), 1);
+
+        assertThat(uploadRepository.recordChunk(upload.getId(), 1)).isNull();
+        assertThat(uploadRepository.findOne(upload.getId()).getReceivedChunks()).isEqualTo(1);
+    }
+
+    @Test
+    public void testRecordChunksCountsOnlyNewOnes() {
+        uploadRepository.recordChunk(upload.getId(), 2);
+
+        ChunkReceipt receipt = uploadRepository.recordChunks(upload.getId(), Arrays.asList(1, 2, 2, 35));
+
+        assertThat(receipt.getRecorded()).containsExactly(1, 35);
+        assertThat(receipt.getUpload().getReceivedChunks()).isEqualTo(3);
+        assertThat(ChunkBitmap.count(uploadRepository.findOne(upload.getId()).getChunkBits())).isEqualTo(3);
+    }
+
+    @Test
+    public void testRecordChunkWithoutBitmap() {
+        upload.setChunkBits(null);
+        uploadRepository.save(upload);
+
+        Upload updated = uploadRepository.recordChunk(upload.getId(), 5);
+
+        assertThat(updated.getReceivedChunks()).isEqualTo(1);
+        assertThat(updated.getChunkBits()).hasSize(2);
+    }
+
+    @Test
+    public void testRecordChunkOfMissingUpload() {
+        assertThat(uploadRepository.recordChunk("missing", 1)).isNull();
+    }
+
+    @Test
+    public void testStalledFinalizingIsClaimedOnce() {
+        upload.setState(UploadState.FINALIZING);
+        upload.setLastActivity(DateTime.now().minusHours(2));
+        uploadRepository.save(upload);
+
+        Upload claimed = uploadRepository.claimStalledFinalizing(DateTime.now().minusHours(1));
+
+        assertThat(claimed.getId()).isEqualTo(upload.getId());
+        assertThat(uploadRepository.claimStalledFinalizing(DateTime.now().minusHours(1))).isNull();
+    }
+
+    @Test
+    public void testRecentFinalizingIsLeftAlone() {
+        uploadRepository.startFinalizing(upload.getId());
+
+        assertThat(uploadRepository.claimStalledFinalizing(DateTime.now().minusHours(1))).isNull();
+    }
+
+    @Test
+    public void testFindAbandoned() {
+        DateTime cutoff = DateTime.now().minusHours(1);
+        DateTime stale = cutoff.minusHours(1);
+
+        String receiving = save(UploadState.RECEIVING, null, stale, null);
+        String failed = save(UploadState.FAILED, null, stale, null);
+        String legacy = save(null, false, null, LocalDate.now().minusDays(2));
+        save(UploadState.RECEIVING, null, DateTime.now(), null);
+        save(UploadState.FINALIZING, true, stale, null);
+        save(UploadState.COMPLETE, true, stale, null);
+        save(null, true, null, LocalDate.now().minusDays(2));
+        save(null, false, null, LocalDate.now().plusDays(1));
+
+        List<Upload> abandoned = uploadRepository.findAbandoned(cutoff, 10);
+
+        assertThat(abandoned).extracting("id").containsOnly(receiving, failed, legacy);
+        assertThat(uploadRepository.findAbandoned(cutoff, 2)).hasSize(2);
+    }
+
+    @Test
+    public void testRemoveAbandonedSparesActiveUploads() {
+        DateTime cutoff = DateTime.now().minusHours(1);
+
+        String stale = save(UploadState.RECEIVING, null, cutoff.minusHours(1), null);
+        String revived = save(UploadState.RECEIVING, null, cutoff.minusHours(1), null);
+        uploadRepository.recordChunk(revived, 1);
+
+        List<String> removed = uploadRepository.removeAbandoned(Arrays.asList(stale, revived), cutoff);
+
+        assertThat(removed).containsExactly(stale);
+        assertThat(uploadRepository.exists(stale)).isFalse();
+        assertThat(uploadRepository.exists(revived)).isTrue();
+    }
+
+    @Test
+    public void testDuplicateChunkRefreshesActivity() {
+        DateTime stale = DateTime.now().minusHours(2);
+        String id = save(UploadState.RECEIVING, null, stale, null);
+        uploadRepository.recordChunk(id, 1);
+        uploadRepository.save(withLastActivity(id, stale));
+
+        assertThat(uploadRepository.recordChunk(id, 1)).isNull();
+        assertThat(uploadRepository.findOne(id).getLastActivity()).isGreaterThan(stale);
+    }
+
+    @Test
+    public void testMarkFailedLeavesCompleteUploadsAlone() {
+        String receiving = save(UploadState.RECEIVING, null, DateTime.now(), null);
+        String finalizing = save(UploadState.FINALIZING, true, DateTime.now(), null);
+        String complete = save(UploadState.COMPLETE, true, DateTime.now(), null);
+
+        uploadRepository.markFailed(receiving);
+        uploadRepository.markFailed(finalizing);
+        uploadRepository.markFailed(complete);
+
+        assertThat(uploadRepository.findOne(receiving).getState()).isEqualTo(UploadState.FAILED);
+        assertThat(uploadRepository.findOne(finalizing).getState()).isEqualTo(UploadState.FAILED);
+        assertThat(uploadRepository.findOne(complete).getState()).isEqualTo(UploadState.COMPLETE);
+    }
+
+    private Upload withLastActivity(String id, DateTime lastActivity) {
+        Upload u = uploadRepository.findOne(id);
+        u.setLastActivity(lastActivity);
+        return u;
+    }
+
+    private String save(UploadState state, Boolean uploadComplete, DateTime lastActivity, LocalDate uploadedAt) {
+        Upload u = new Upload();
+        u.setState(state);
+        u.setUploadComplete(uploadComplete);
+        u.setLastActivity(lastActivity);
+        u.setUploadedAt(uploadedAt);
+        u.setTotalChunks(TOTAL_CHUNKS);
+        u.setReceivedChunks(0);
+        u.setChunkBits(ChunkBitmap.create(TOTAL_CHUNKS));
+        return uploadRepository.save(u).getId();
+    }
+}
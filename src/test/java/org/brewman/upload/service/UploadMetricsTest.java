@@ -0,0 +1,77 @@
+package org.brewman.upload.service;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the UploadMetrics.
+ *
+ * @see UploadMetrics
+ */
+public class UploadMetricsTest {
+
+    private MetricRegistry metricRegistry;
+
+    private UploadMetrics uploadMetrics;
+
+    @Before
+    public void setup() {
+        metricRegistry = new MetricRegistry();
+        uploadMetrics = new UploadMetrics(metricRegistry);
+    }
+
+    @Test
+    public void testEveryPhaseIsTimed() {
+        for (UploadMetrics.Phase phase : UploadMetrics.Phase.values()) {
+            try (Timer.Context ignored = uploadMetrics.time(phase)) {
+                // nothing to time
+            }
+        }
+
+        assertThat(metricRegistry.getTimers()).hasSize(UploadMetrics.Phase.values().length);
+        metricRegistry.getTimers().values().forEach(timer -> assertThat(timer.getCount()).isEqualTo(1));
+    }
+
+    @Test
+    public void testChunksWritten() {
+        uploadMetrics.chunkWritten(1024);
+        uploadMetrics.chunkWritten(2048);
+
+        assertThat(metricRegistry.meter(MetricRegistry.name(UploadMetrics.class, "bytes")).getCount())
+            .isEqualTo(3072);
+        assertThat(metricRegistry.histogram(MetricRegistry.name(UploadMetrics.class, "chunkSize"))
+            .getSnapshot().getMax()).isEqualTo(2048);
+    }
+
+    @Test
+    public void testInFlight() {
+        UploadMetrics.InFlight first = uploadMetrics.startChunk("a");
+        UploadMetrics.InFlight second = uploadMetrics.startChunk("a");
+        UploadMetrics.InFlight third = uploadMetrics.startChunk("b");
+
+        assertThat(gauge("chunks")).isEqualTo(3);
+        assertThat(gauge("uploads")).isEqualTo(2);
+
+        first.close();
+        first.close();
+        third.close();
+
+        assertThat(gauge("chunks")).isEqualTo(1);
+        assertThat(gauge("uploads")).isEqualTo(1);
+
+        second.close();
+
+        assertThat(gauge("chunks")).isEqualTo(0);
+        assertThat(gauge("uploads")).isEqualTo(0);
+    }
+
+    private Object gauge(String name) {
+        Gauge<?> gauge = metricRegistry.getGauges().get(MetricRegistry.name(UploadMetrics.class, "inFlight", name));
+        return gauge.getValue();
+    }
+}
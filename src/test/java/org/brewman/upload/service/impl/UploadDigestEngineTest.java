@@ -0,0 +1,145 @@
+package org.brewman.upload.service.impl;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.domain.UploadState;
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the UploadDigestEngine.
+ *
+ * @see UploadDigestEngine
+ */
+public class UploadDigestEngineTest {
+
+    private static final byte[][] CHUNKS = {
+        "first chunk ".getBytes(), "second chunk ".getBytes(), "last chunk".getBytes()
+    };
+
+    private List<Integer> digested;
+
+    private UploadDigestEngine digestEngine;
+
+    private Upload upload;
+
+    @Before
+    public void setup() {
+        digested = new ArrayList<>();
+        digestEngine = new UploadDigestEngine((u, flowChunkNumber, md) -> {
+            digested.add(flowChunkNumber);
+            md.update(CHUNKS[flowChunkNumber - 1]);
+        }, 100, 3600);
+
+        upload = new Upload();
+        upload.setId("0b3e4a6c-5b8a-4d9c-9a1e-2f3c4d5e6f70");
+        upload.setTotalChunks(CHUNKS.length);
+        upload.setChunkBits(ChunkBitmap.create(CHUNKS.length));
+    }
+
+    @Test
+    public void testOutOfOrderChunksWaitForThePrefix() throws Exception {
+        receive(3);
+        assertThat(digested).isEmpty();
+
+        receive(1);
+        assertThat(digested).containsExactly(1);
+
+        receive(2);
+        assertThat(digested).containsExactly(1, 2, 3);
+
+        String md5 = digestEngine.finish(upload);
+        assertThat(md5).isEqualTo(DigestUtils.md5Hex(concat()));
+    }
+
+    @Test
+    public void testFinishWithoutPriorStateRebuildsFromThePrefix() throws Exception {
+        for (int i = 1; i <= CHUNKS.length; i++) {
+            ChunkBitmap.set(upload.getChunkBits(), i);
+        }
+
+        String md5 = digestEngine.finish(upload);
+        assertThat(md5).isEqualTo(DigestUtils.md5Hex(concat()));
+        assertThat(digested).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void testFinishIncompleteUploadReturnsNull() throws Exception {
+        receive(1);
+
+        assertThat(digestEngine.finish(upload)).isNull();
+    }
+
+    @Test
+    public void testLateChunkAfterFinishIsNotHashedAgain() throws Exception {
+        receive(1);
+        receive(2);
+        receive(3);
+        digestEngine.finish(upload);
+        digested.clear();
+
+        receive(3);
+
+        assertThat(digested).isEmpty();
+        assertThat(digestEngine.finish(upload)).isNull();
+    }
+
+    @Test
+    public void testChunkAfterDiscardIsNotHashed() throws Exception {
+        receive(1);
+        digestEngine.discard(upload.getId());
+        digested.clear();
+
+        receive(2);
+
+        assertThat(digested).isEmpty();
+    }
+
+    @Test
+    public void testNoStateIsStartedOnceTheUploadIsFinalizing() throws Exception {
+        upload.setState(UploadState.FINALIZING);
+
+        receive(1);
+
+        assertThat(digested).isEmpty();
+    }
+
+    @Test
+    public void testStatesAreBounded() throws Exception {
+        receive(1);
+
+        for (int i = 0; i < 200; i++) {
+            Upload other = new Upload();
+            other.setId("other-" + i);
+            other.setTotalChunks(1);
+            other.setChunkBits(ChunkBitmap.create(1));
+            digestEngine.advance(other);
+        }
+        digested.clear();
+
+        // the first upload's state was evicted, so finishing rebuilds it
+        receive(2);
+        receive(3);
+        assertThat(digestEngine.finish(upload)).isEqualTo(DigestUtils.md5Hex(concat()));
+        assertThat(digested).containsExactly(1, 2, 3);
+    }
+
+    private void receive(int flowChunkNumber) throws Exception {
+        ChunkBitmap.set(upload.getChunkBits(), flowChunkNumber);
+        digestEngine.advance(upload);
+    }
+
+    private byte[] concat() {
+        StringBuilder sb = new StringBuilder();
+        for (byte[] chunk : CHUNKS) {
+            sb.append(new String(chunk));
+        }
+        return sb.toString().getBytes();
+    }
+}
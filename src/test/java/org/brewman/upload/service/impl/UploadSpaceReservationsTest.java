@@ -0,0 +1,101 @@
+package org.brewman.upload.service.impl;
+
+import org.brewman.upload.service.InsufficientStorageException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Test class for the UploadSpaceReservations.
+ *
+ * @see UploadSpaceReservations
+ */
+public class UploadSpaceReservationsTest {
+
+    private long usable;
+
+    private UploadSpaceReservations reservations;
+
+    @Before
+    public void setup() {
+        usable = 1000;
+        reservations = new UploadSpaceReservations(() -> usable, 100);
+    }
+
+    @Test
+    public void testReserveUpToTheFreeSpace() throws IOException {
+        reservations.reserve("a", 500);
+        reservations.reserve("b", 400);
+
+        assertThat(reservations.getReserved()).isEqualTo(900);
+        assertRefused("c", 1);
+    }
+
+    @Test
+    public void testWrittenBytesMoveFromTheReservationToTheVolume() throws IOException {
+        reservations.reserve("a", 900);
+        assertRefused("b", 100);
+
+        // half of "a" lands on disk
+        usable -= 450;
+        reservations.update("a", 450);
+
+        assertRefused("b", 1);
+
+        reservations.release("a");
+        reservations.reserve("b", 450);
+
+        assertThat(reservations.getReserved()).isEqualTo(450);
+    }
+
+    @Test
+    public void testReleaseIsIdempotent() throws IOException {
+        reservations.reserve("a", 300);
+        reservations.release("a");
+        reservations.release("a");
+
+        assertThat(reservations.getReserved()).isEqualTo(0);
+        assertThat(reservations.getReservedGauge().getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void testUpdateNeverMakesAReservation() throws IOException {
+        reservations.update("a", 300);
+
+        assertThat(reservations.getReserved()).isEqualTo(0);
+    }
+
+    @Test
+    public void testUpdateAfterReleaseIsIgnored() throws IOException {
+        reservations.reserve("a", 300);
+        reservations.release("a");
+
+        // a late chunk for the finished upload
+        reservations.update("a", 100);
+
+        assertThat(reservations.getReserved()).isEqualTo(0);
+        reservations.reserve("b", 900);
+    }
+
+    @Test
+    public void testUpdateOnlyShrinks() throws IOException {
+        reservations.reserve("a", 300);
+        reservations.update("a", 200);
+        reservations.update("a", 250);
+
+        assertThat(reservations.getReserved()).isEqualTo(200);
+    }
+
+    private void assertRefused(String flowIdentifier, long bytes) throws IOException {
+        try {
+            reservations.reserve(flowIdentifier, bytes);
+            fail("expected " + flowIdentifier + " to be refused");
+        } catch (InsufficientStorageException e) {
+            assertThat(e.getMessage()).contains("not enough space");
+        }
+    }
+}
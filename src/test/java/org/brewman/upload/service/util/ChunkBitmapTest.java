@@ -0,0 +1,59 @@
+package org.brewman.upload.service.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the ChunkBitmap utility class.
+ *
+ * @see ChunkBitmap
+ */
+public class ChunkBitmapTest {
+
+    @Test
+    public void testCreateRoundsUpToWholeWords() {
+        assertThat(ChunkBitmap.create(1)).hasSize(1);
+        assertThat(ChunkBitmap.create(32)).hasSize(1);
+        assertThat(ChunkBitmap.create(33)).hasSize(2);
+        assertThat(ChunkBitmap.create(4096)).hasSize(128);
+    }
+
+    @Test
+    public void testSetAndCount() {
+        int[] bits = ChunkBitmap.create(64);
+        ChunkBitmap.set(bits, 1);
+        ChunkBitmap.set(bits, 32);
+        ChunkBitmap.set(bits, 33);
+        ChunkBitmap.set(bits, 33);
+
+        assertThat(ChunkBitmap.isSet(bits, 1)).isTrue();
+        assertThat(ChunkBitmap.isSet(bits, 2)).isFalse();
+        assertThat(ChunkBitmap.isSet(bits, 32)).isTrue();
+        assertThat(ChunkBitmap.isSet(bits, 33)).isTrue();
+        assertThat(ChunkBitmap.count(bits)).isEqualTo(3);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testChunkZeroIsRejected() {
+        ChunkBitmap.set(ChunkBitmap.create(64), 0);
+    }
+
+    @Test
+    public void testIsSetOutsideTheBitmap() {
+        assertThat(ChunkBitmap.isSet(null, 1)).isFalse();
+        assertThat(ChunkBitmap.isSet(ChunkBitmap.create(32), 33)).isFalse();
+    }
+
+    @Test
+    public void testRanges() {
+        int[] bits = ChunkBitmap.create(40);
+        for (int n : new int[] { 1, 2, 3, 31, 32, 33, 40 }) {
+            ChunkBitmap.set(bits, n);
+        }
+
+        assertThat(ChunkBitmap.ranges(bits, 40)).containsExactly(
+            new int[] { 1, 3 }, new int[] { 31, 33 }, new int[] { 40, 40 });
+        assertThat(ChunkBitmap.ranges(null, 40)).isEmpty();
+    }
+}
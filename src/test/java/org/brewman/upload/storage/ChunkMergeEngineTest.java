@@ -0,0 +1,58 @@
+package org.brewman.upload.storage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the ChunkMergeEngine.
+ *
+ * @see ChunkMergeEngine
+ */
+public class ChunkMergeEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final ChunkMergeEngine mergeEngine = new ChunkMergeEngine(4, Collections.emptyMap());
+
+    @Test
+    public void testMergeKeepsChunkOrder() throws Exception {
+        byte[] data = new byte[10 * 4096 + 123];
+        new Random(42).nextBytes(data);
+
+        List<File> chunks = new ArrayList<>();
+        for (int offset = 0, i = 1; offset < data.length; offset += 4096, i++) {
+            File chunk = folder.newFile("chunk" + i);
+            int length = Math.min(4096, data.length - offset);
+            byte[] part = new byte[length];
+            System.arraycopy(data, offset, part, 0, length);
+            Files.write(chunk.toPath(), part);
+            chunks.add(chunk);
+        }
+
+        File target = new File(folder.getRoot(), "target");
+        mergeEngine.merge(chunks, target);
+
+        assertThat(Files.readAllBytes(target.toPath())).isEqualTo(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMergeFailsOnMissingChunk() throws Exception {
+        List<File> chunks = new ArrayList<>();
+        chunks.add(folder.newFile("chunk1"));
+        chunks.add(new File(folder.getRoot(), "chunk2"));
+
+        mergeEngine.merge(chunks, new File(folder.getRoot(), "target"));
+    }
+}
@@ -0,0 +1,210 @@
+package org.brewman.upload.storage;
+
+import org.apache.commons.io.IOUtils;
+import org.brewman.upload.domain.StorageMode;
+import org.brewman.upload.domain.Upload;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Test class for the LocalFileStorageEngine.
+ *
+ * @see LocalFileStorageEngine
+ */
+public class LocalFileStorageEngineTest {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private StorageEngine storageEngine;
+
+    private byte[] data;
+
+    @Before
+    public void setup() throws IOException {
+        storageEngine = createStorageEngine(folder.getRoot().getPath());
+        storageEngine.init();
+
+        data = new byte[3 * CHUNK_SIZE + 1500];
+        new Random(42).nextBytes(data);
+    }
+
+    protected StorageEngine createStorageEngine(String baseLocation) {
+        return new LocalFileStorageEngine(baseLocation, 2, Collections.emptyMap());
+    }
+
+    @Test
+    public void testChunkedRoundTrip() throws IOException {
+        assertRoundTrip(StorageMode.CHUNKED);
+    }
+
+    @Test
+    public void testPositionalRoundTrip() throws IOException {
+        assertRoundTrip(StorageMode.POSITIONAL);
+    }
+
+    @Test
+    public void testDeleteRemovesEverything() throws IOException {
+        Upload upload = upload("delete", StorageMode.CHUNKED);
+        storageEngine.create(upload);
+        writeChunk(upload, 1);
+
+        assertThat(storageEngine.stat(upload.getId()).exists()).isTrue();
+
+        assertThat(storageEngine.delete(upload.getId())).isEqualTo(CHUNK_SIZE);
+
+        assertThat(storageEngine.stat(upload.getId()).exists()).isFalse();
+    }
+
+    @Test
+    public void testChunkLengthIsTheSlotLength() throws IOException {
+        Upload upload = upload("length", StorageMode.POSITIONAL);
+        storageEngine.create(upload);
+
+        try (ChunkWriter out = storageEngine.openChunk(upload, 1)) {
+            assertThat(out.getLength()).isEqualTo(CHUNK_SIZE);
+            out.write(ByteBuffer.wrap(data, 0, CHUNK_SIZE));
+        }
+
+        try (ChunkWriter out = storageEngine.openChunk(upload, 3)) {
+            assertThat(out.getLength()).isEqualTo(data.length - 2 * CHUNK_SIZE);
+            out.write(ByteBuffer.wrap(data, 2 * CHUNK_SIZE, data.length - 2 * CHUNK_SIZE));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testLongChunkIsRejected() throws IOException {
+        Upload upload = upload("long", StorageMode.POSITIONAL);
+        storageEngine.create(upload);
+
+        try (ChunkWriter out = storageEngine.openChunk(upload, 1)) {
+            out.write(ByteBuffer.wrap(data, 0, CHUNK_SIZE + 1));
+        }
+    }
+
+    @Test
+    public void testLongChunkIsNotTransferredPastItsSlot() throws IOException {
+        Upload upload = upload("transfer", StorageMode.POSITIONAL);
+        storageEngine.create(upload);
+
+        try (ChunkWriter out = storageEngine.openChunk(upload, 1)) {
+            ReadableByteChannel src = Channels.newChannel(new ByteArrayInputStream(data));
+            long written = 0;
+            long n;
+
+            while ((n = out.transferFrom(src, data.length - written)) > 0) {
+                written += n;
+            }
+
+            assertThat(written).isEqualTo(CHUNK_SIZE);
+        }
+    }
+
+    @Test
+    public void testShortChunkIsRejected() throws IOException {
+        Upload upload = upload("short", StorageMode.CHUNKED);
+        storageEngine.create(upload);
+
+        ChunkWriter out = storageEngine.openChunk(upload, 1);
+        out.write(ByteBuffer.wrap(data, 0, CHUNK_SIZE - 1));
+
+        try {
+            out.close();
+            fail("short chunk was accepted");
+        } catch (IOException e) {
+            assertThat(e.getMessage()).startsWith("chunk truncated");
+        }
+
+        assertThat(folder.getRoot().toPath().resolve("sh/or/short.chunk/1").toFile().length())
+            .isEqualTo(CHUNK_SIZE - 1);
+    }
+
+    @Test
+    public void testFlatLayoutIsFoundAndMigrated() throws IOException {
+        String id = "0a1b2c3d-legacy";
+        Files.write(folder.getRoot().toPath().resolve(id), data);
+
+        assertThat(storageEngine.stat(id).isComplete()).isTrue();
+
+        assertThat(((LocalFileStorageEngine) storageEngine).migrateFlatLayout()).isEqualTo(1);
+
+        StorageStat stat = storageEngine.stat(id);
+        assertThat(stat.isComplete()).isTrue();
+        assertThat(stat.getPath().toFile()).isEqualTo(new File(folder.getRoot(), "0a/1b/" + id));
+        assertThat(Files.readAllBytes(stat.getPath())).isEqualTo(data);
+    }
+
+    private void assertRoundTrip(StorageMode mode) throws IOException {
+        Upload upload = upload(mode.name(), mode);
+        storageEngine.create(upload);
+
+        assertThat(storageEngine.stat(upload.getId()).isPartial()).isTrue();
+        assertThat(storageEngine.stat(upload.getId()).isComplete()).isFalse();
+
+        // Out of order on purpose, the last chunk takes the remainder
+        for (int n : new int[] { 3, 1, 2 }) {
+            writeChunk(upload, n);
+        }
+
+        try (InputStream in = Channels.newInputStream(storageEngine.readChunk(upload, 3))) {
+            byte[] last = new byte[CHUNK_SIZE + 1500];
+            System.arraycopy(data, 2 * CHUNK_SIZE, last, 0, last.length);
+            assertThat(readFully(in)).isEqualTo(last);
+        }
+
+        storageEngine.commit(upload);
+
+        StorageStat stat = storageEngine.stat(upload.getId());
+        assertThat(stat.isComplete()).isTrue();
+        assertThat(stat.isPartial()).isFalse();
+        assertThat(stat.getSize()).isEqualTo(data.length);
+        assertThat(Files.readAllBytes(stat.getPath())).isEqualTo(data);
+
+        try (ReadableByteChannel in = storageEngine.readRange(upload.getId(), 100, 50)) {
+            byte[] range = new byte[50];
+            System.arraycopy(data, 100, range, 0, 50);
+            assertThat(readFully(Channels.newInputStream(in))).isEqualTo(range);
+        }
+    }
+
+    private Upload upload(String id, StorageMode mode) {
+        Upload upload = new Upload();
+        upload.setId(id);
+        upload.setStorageMode(mode);
+        upload.setChunkSize(CHUNK_SIZE);
+        upload.setTotalChunks(3);
+        upload.setTotalSize((long) data.length);
+        return upload;
+    }
+
+    private void writeChunk(Upload upload, int n) throws IOException {
+        int offset = (n - 1) * CHUNK_SIZE;
+        int length = n == 3 ? data.length - offset : CHUNK_SIZE;
+
+        try (ChunkWriter out = storageEngine.openChunk(upload, n)) {
+            out.write(ByteBuffer.wrap(data, offset, length));
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        return IOUtils.toByteArray(in);
+    }
+}
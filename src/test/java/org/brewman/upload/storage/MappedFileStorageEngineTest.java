@@ -0,0 +1,17 @@
+package org.brewman.upload.storage;
+
+import java.util.Collections;
+
+/**
+ * Test class for the MappedFileStorageEngine. Runs the same round trips as
+ * the local engine.
+ *
+ * @see MappedFileStorageEngine
+ */
+public class MappedFileStorageEngineTest extends LocalFileStorageEngineTest {
+
+    @Override
+    protected StorageEngine createStorageEngine(String baseLocation) {
+        return new MappedFileStorageEngine(baseLocation, 2, Collections.emptyMap());
+    }
+}
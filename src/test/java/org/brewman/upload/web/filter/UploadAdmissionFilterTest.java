@@ -0,0 +1,196 @@
+package org.brewman.upload.web.filter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockAsyncContext;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the UploadAdmissionFilter.
+ *
+ * @see UploadAdmissionFilter
+ */
+public class UploadAdmissionFilterTest {
+
+    private static final int MAX_WRITES = 2;
+
+    private static final long MAX_BYTES = 100;
+
+    private MetricRegistry metricRegistry;
+
+    private UploadAdmissionFilter filter;
+
+    @Before
+    public void setup() throws ServletException {
+        metricRegistry = new MetricRegistry();
+        filter = new UploadAdmissionFilter(MAX_WRITES, MAX_BYTES, 7, metricRegistry);
+        filter.init(null);
+    }
+
+    @Test
+    public void testReadsAreLetStraightThrough() throws Exception {
+        for (int i = 0; i <= MAX_WRITES; i++) {
+            MockFilterChain chain = new MockFilterChain();
+            filter.doFilter(new MockHttpServletRequest("GET", "/api/uploader"), new MockHttpServletResponse(), chain);
+
+            assertThat(chain.getRequest()).isNotNull();
+        }
+        assertThat(writes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testWriteIsAdmittedAndReleased() throws Exception {
+        long[] during = new long[2];
+        MockFilterChain chain = new MockFilterChain(new HttpServlet() {
+            @Override
+            public void service(ServletRequest request, ServletResponse response) {
+                during[0] = writes();
+                during[1] = inFlightBytes();
+            }
+        });
+
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(write("POST", 40), response, chain);
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(during).containsExactly(1, 40);
+        assertThat(writes()).isEqualTo(0);
+        assertThat(inFlightBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testTooManyWritesAreTurnedAway() throws Exception {
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+
+        whileAdmitted(write("PUT", 10), () ->
+            whileAdmitted(write("PUT", 10), () ->
+                filter.doFilter(write("PUT", 10), rejected, new MockFilterChain())));
+
+        assertThat(rejected.getStatus()).isEqualTo(429);
+        assertThat(rejected.getHeader("Retry-After")).isEqualTo("7");
+        assertThat(rejected()).isEqualTo(1);
+        assertThat(writes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testWritesOverTheByteBudgetAreTurnedAway() throws Exception {
+        MockHttpServletResponse rejected = new MockHttpServletResponse();
+
+        whileAdmitted(write("POST", 80), () ->
+            filter.doFilter(write("POST", 30), rejected, new MockFilterChain()));
+
+        assertThat(rejected.getStatus()).isEqualTo(429);
+        assertThat(inFlightBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testChunkBiggerThanTheBudgetIsLetInAlone() throws Exception {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(write("POST", 3 * MAX_BYTES), response, new MockFilterChain());
+
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(rejected()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAsyncWriteIsReleasedWhenItCompletes() throws Exception {
+        MockHttpServletRequest request = write("PUT", 50);
+        request.setAsyncSupported(true);
+
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain(new HttpServlet() {
+            @Override
+            public void service(ServletRequest request, ServletResponse response) {
+                request.startAsync();
+            }
+        }));
+
+        // The read carries on after the chain has returned
+        assertThat(writes()).isEqualTo(1);
+        assertThat(inFlightBytes()).isEqualTo(50);
+
+        MockAsyncContext async = (MockAsyncContext) request.getAsyncContext();
+        assertThat(async.getListeners()).hasSize(1);
+        async.complete();
+
+        assertThat(writes()).isEqualTo(0);
+        assertThat(inFlightBytes()).isEqualTo(0);
+    }
+
+    @Test
+    public void testAsyncWriteIsReleasedOnlyOnce() throws Exception {
+        MockHttpServletRequest request = write("PUT", 50);
+        request.setAsyncSupported(true);
+
+        filter.doFilter(request, new MockHttpServletResponse(), new MockFilterChain(new HttpServlet() {
+            @Override
+            public void service(ServletRequest request, ServletResponse response) {
+                request.startAsync();
+            }
+        }));
+
+        MockAsyncContext async = (MockAsyncContext) request.getAsyncContext();
+        async.getListeners().get(0).onTimeout(null);
+        async.complete();
+
+        assertThat(writes()).isEqualTo(0);
+        assertThat(inFlightBytes()).isEqualTo(0);
+    }
+
+    private interface Action {
+        void run() throws IOException, ServletException;
+    }
+
+    /**
+     * Run the action while the given write is inside the filter.
+     */
+    private void whileAdmitted(MockHttpServletRequest request, Action action) throws IOException, ServletException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        filter.doFilter(request, response, new MockFilterChain(new HttpServlet() {
+            @Override
+            public void service(ServletRequest request, ServletResponse response)
+                throws IOException, ServletException {
+                action.run();
+            }
+        }));
+
+        assertThat(response.getStatus()).isEqualTo(200);
+    }
+
+    private static MockHttpServletRequest write(String method, long bytes) {
+        MockHttpServletRequest request = new MockHttpServletRequest(method, "/api/uploader");
+        request.setContent(new byte[(int) bytes]);
+        return request;
+    }
+
+    private long writes() {
+        return ((Number) gauge("writes").getValue()).longValue();
+    }
+
+    private long inFlightBytes() {
+        return ((Number) gauge("inFlightBytes").getValue()).longValue();
+    }
+
+    private long rejected() {
+        Meter meter = metricRegistry.getMeters().get(MetricRegistry.name(UploadAdmissionFilter.class, "rejected"));
+        return meter.getCount();
+    }
+
+    private Gauge<?> gauge(String name) {
+        return metricRegistry.getGauges().get(MetricRegistry.name(UploadAdmissionFilter.class, name));
+    }
+}
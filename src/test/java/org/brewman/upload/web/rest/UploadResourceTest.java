@@ -1,13 +1,21 @@
 package org.brewman.upload.web.rest;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.brewman.upload.Application;
 import org.brewman.upload.domain.Upload;
 import org.brewman.upload.repository.UploadRepository;
+import org.brewman.upload.service.UploadService;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.startsWith;
 import org.mockito.MockitoAnnotations;
 import org.springframework.boot.test.IntegrationTest;
 import org.springframework.boot.test.SpringApplicationConfiguration;
@@ -61,6 +69,12 @@ public class UploadResourceTest {
     @Inject
     private UploadRepository uploadRepository;
 
+    @Inject
+    private UploadService uploadService;
+
+    @Inject
+    private ObjectMapper objectMapper;
+
     private MockMvc restUploadMockMvc;
 
     private Upload upload;
@@ -70,6 +84,8 @@ public class UploadResourceTest {
         MockitoAnnotations.initMocks(this);
         UploadResource uploadResource = new UploadResource();
         ReflectionTestUtils.setField(uploadResource, "uploadRepository", uploadRepository);
+        ReflectionTestUtils.setField(uploadResource, "uploadService", uploadService);
+        ReflectionTestUtils.setField(uploadResource, "objectMapper", objectMapper);
         this.restUploadMockMvc = MockMvcBuilders.standaloneSetup(uploadResource).build();
     }
 
@@ -128,6 +144,64 @@ public class UploadResourceTest {
                 .andExpect(jsonPath("$.[*].completedAt").value(hasItem(DEFAULT_COMPLETED_AT.toString())));
     }
 
+    @Test
+    public void getUploadsPageByPage() throws Exception {
+        // Initialize the database
+        uploadRepository.save(upload);
+        Upload newer = new Upload();
+        newer.setOriginalName(UPDATED_ORIGINAL_NAME);
+        newer.setUploadedAt(UPDATED_UPLOADED_AT);
+        newer.setChunkBits(new int[] { 1 });
+        uploadRepository.save(newer);
+
+        // Newest first, one at a time, without the chunk bitmap
+        restUploadMockMvc.perform(get("/api/uploads?per_page=1"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.[*].id").value(contains(newer.getId())))
+                .andExpect(jsonPath("$.[*].chunkBits").value(contains(nullValue())))
+                .andExpect(header().string("Link", containsString(
+                    "after=" + UPDATED_UPLOADED_AT + "_" + newer.getId() + ">; rel=\"next\"")));
+
+        restUploadMockMvc.perform(get("/api/uploads?per_page=1&after=" + UPDATED_UPLOADED_AT + "_" + newer.getId()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.[*].id").value(contains(upload.getId())))
+                .andExpect(header().string("Link", not(containsString("rel=\"next\""))));
+
+        // Only the ones started from a day on
+        restUploadMockMvc.perform(get("/api/uploads?from=" + UPDATED_UPLOADED_AT))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.[*].id").value(contains(newer.getId())));
+
+        restUploadMockMvc.perform(get("/api/uploads?after=garbage"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void exportUploads() throws Exception {
+        // Initialize the database
+        uploadRepository.save(upload);
+
+        // One upload per line
+        restUploadMockMvc.perform(get("/api/uploads/export"))
+                .andExpect(status().isOk())
+                .andExpect(content().contentType("application/x-ndjson;charset=UTF-8"))
+                .andExpect(content().string(startsWith("{\"id\":\"" + upload.getId() + "\"")))
+                .andExpect(content().string(endsWith("}\n")));
+
+        restUploadMockMvc.perform(get("/api/uploads/export?format=csv"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(startsWith("id,originalName,uploadedAt,")))
+                .andExpect(content().string(containsString("\r\n" + upload.getId() + "," + DEFAULT_ORIGINAL_NAME + ","
+                    + DEFAULT_UPLOADED_AT + ",")));
+
+        restUploadMockMvc.perform(get("/api/uploads/export?format=csv&from=" + UPDATED_UPLOADED_AT))
+                .andExpect(status().isOk())
+                .andExpect(content().string(not(containsString(upload.getId()))));
+
+        restUploadMockMvc.perform(get("/api/uploads/export?format=xml"))
+                .andExpect(status().isBadRequest());
+    }
+
     @Test
     public void getUpload() throws Exception {
         // Initialize the database
@@ -0,0 +1,275 @@
+package org.brewman.upload.web.rest;
+
+import org.brewman.upload.Application;
+import org.brewman.upload.domain.Upload;
+import org.brewman.upload.repository.UploadRepository;
+import org.brewman.upload.service.UploadService;
+import org.brewman.upload.service.util.ChunkBitmap;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.IntegrationTest;
+import org.springframework.boot.test.SpringApplicationConfiguration;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.context.junit4.SpringJUnit4ClassRunner;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+/**
+ * Test class for the UploaderResource REST controller.
+ *
+ * @see UploaderResource
+ */
+@RunWith(SpringJUnit4ClassRunner.class)
+@SpringApplicationConfiguration(classes = Application.class)
+@WebAppConfiguration
+@IntegrationTest
+public class UploaderResourceTest {
+
+    private static final int CHUNK_SIZE = 1024;
+
+    private static final int TOTAL_CHUNKS = 3;
+
+    private static final long TOTAL_SIZE = 2 * CHUNK_SIZE + 500;
+
+    private static final String FILENAME = "sample.bin";
+
+    @Inject
+    private UploadRepository uploadRepository;
+
+    @Inject
+    private UploadService uploadService;
+
+    private MockMvc restUploaderMockMvc;
+
+    private String flowIdentifier;
+
+    private byte[] data;
+
+    @PostConstruct
+    public void setup() {
+        UploaderResource uploaderResource = new UploaderResource();
+        ReflectionTestUtils.setField(uploaderResource, "uploadService", uploadService);
+        this.restUploaderMockMvc = MockMvcBuilders.standaloneSetup(uploaderResource).build();
+    }
+
+    @Before
+    public void initTest() {
+        flowIdentifier = uploadService.getAvailableIdentifier();
+        data = new byte[(int) TOTAL_SIZE];
+        new Random(42).nextBytes(data);
+    }
+
+    @Test
+    public void saveChunkBatch() throws Exception {
+        restUploaderMockMvc.perform(fileUpload("/api/uploader/batch")
+                .file(chunkPart(1))
+                .file(chunkPart(2))
+                .param("flowChunkNumber", "1", "2")
+                .param("flowChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowFilename", FILENAME)
+                .param("flowIdentifier", flowIdentifier)
+                .param("flowTotalChunks", String.valueOf(TOTAL_CHUNKS))
+                .param("flowTotalSize", String.valueOf(TOTAL_SIZE)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].flowChunkNumber").value(1))
+                .andExpect(jsonPath("$[0].status").value("SAVED"))
+                .andExpect(jsonPath("$[1].flowChunkNumber").value(2))
+                .andExpect(jsonPath("$[1].status").value("SAVED"))
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "2"))
+                .andExpect(header().string(UploaderResource.TOTAL_CHUNKS_HEADER, String.valueOf(TOTAL_CHUNKS)));
+
+        assertThat(uploadRepository.findOne(flowIdentifier).getReceivedChunks()).isEqualTo(2);
+    }
+
+    @Test
+    public void saveChunkBatchWithDuplicateAndOutOfRangeChunks() throws Exception {
+        restUploaderMockMvc.perform(fileUpload("/api/uploader/batch")
+                .file(chunkPart(1))
+                .file(chunkPart(1))
+                .file(chunkPart(1))
+                .file(chunkPart(1))
+                .param("flowChunkNumber", "1", "1", "0", String.valueOf(TOTAL_CHUNKS + 1))
+                .param("flowChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowFilename", FILENAME)
+                .param("flowIdentifier", flowIdentifier)
+                .param("flowTotalChunks", String.valueOf(TOTAL_CHUNKS))
+                .param("flowTotalSize", String.valueOf(TOTAL_SIZE)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status").value("SAVED"))
+                .andExpect(jsonPath("$[1].status").value("DUPLICATE"))
+                .andExpect(jsonPath("$[2].flowChunkNumber").value(0))
+                .andExpect(jsonPath("$[2].status").value("FAILED"))
+                .andExpect(jsonPath("$[3].flowChunkNumber").value(TOTAL_CHUNKS + 1))
+                .andExpect(jsonPath("$[3].status").value("FAILED"))
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"));
+
+        // A chunk already stored by an earlier request is a duplicate too
+        restUploaderMockMvc.perform(fileUpload("/api/uploader/batch")
+                .file(chunkPart(1))
+                .param("flowChunkNumber", "1")
+                .param("flowChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowFilename", FILENAME)
+                .param("flowIdentifier", flowIdentifier)
+                .param("flowTotalChunks", String.valueOf(TOTAL_CHUNKS))
+                .param("flowTotalSize", String.valueOf(TOTAL_SIZE)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].status").value("DUPLICATE"))
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"));
+
+        assertThat(uploadRepository.findOne(flowIdentifier).getReceivedChunks()).isEqualTo(1);
+    }
+
+    @Test
+    public void putChunk() throws Exception {
+        restUploaderMockMvc.perform(putChunk(1, chunk(1), "my%20file.bin"))
+                .andExpect(status().isOk())
+                .andExpect(content().string(flowIdentifier))
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"))
+                .andExpect(header().string(UploaderResource.TOTAL_CHUNKS_HEADER, String.valueOf(TOTAL_CHUNKS)));
+
+        Upload upload = uploadRepository.findOne(flowIdentifier);
+        assertThat(upload.getOriginalName()).isEqualTo("my file.bin");
+        assertThat(upload.getReceivedChunks()).isEqualTo(1);
+        assertThat(ChunkBitmap.isSet(upload.getChunkBits(), 1)).isTrue();
+    }
+
+    @Test
+    public void putLastChunk() throws Exception {
+        restUploaderMockMvc.perform(putChunk(TOTAL_CHUNKS, chunk(TOTAL_CHUNKS)))
+                .andExpect(status().isOk())
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"));
+    }
+
+    @Test
+    public void putChunkOutOfRange() throws Exception {
+        restUploaderMockMvc.perform(putChunk(TOTAL_CHUNKS + 1, chunk(1)))
+                .andExpect(status().isBadRequest());
+        restUploaderMockMvc.perform(putChunk(0, chunk(1)))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void putChunkOfTheWrongSize() throws Exception {
+        restUploaderMockMvc.perform(putChunk(1, Arrays.copyOf(chunk(1), CHUNK_SIZE - 1)))
+                .andExpect(status().isBadRequest());
+        restUploaderMockMvc.perform(putChunk(TOTAL_CHUNKS, chunk(1)))
+                .andExpect(status().isBadRequest());
+
+        assertThat(uploadRepository.findOne(flowIdentifier).getReceivedChunks()).isEqualTo(0);
+    }
+
+    @Test
+    public void putChunkWithoutFlowHeaders() throws Exception {
+        restUploaderMockMvc.perform(put("/api/uploader/{flowIdentifier}/chunks/{flowChunkNumber}", flowIdentifier, 1)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(chunk(1)))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void createUploadWithInconsistentChunkCount() throws Exception {
+        restUploaderMockMvc.perform(get("/api/uploader")
+                .param("flowChunkNumber", "1")
+                .param("flowChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowCurrentChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowFilename", FILENAME)
+                .param("flowIdentifier", flowIdentifier)
+                .param("flowRelativePath", FILENAME)
+                .param("flowTotalChunks", String.valueOf(TOTAL_CHUNKS + 2))
+                .param("flowTotalSize", String.valueOf(TOTAL_SIZE)))
+                .andExpect(status().isBadRequest());
+
+        assertThat(uploadRepository.findOne(flowIdentifier)).isNull();
+    }
+
+    @Test
+    public void saveDuplicateChunk() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            restUploaderMockMvc.perform(saveChunk(2))
+                    .andExpect(status().isOk())
+                    .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"));
+        }
+
+        Upload upload = uploadRepository.findOne(flowIdentifier);
+        assertThat(upload.getReceivedChunks()).isEqualTo(1);
+        assertThat(ChunkBitmap.count(upload.getChunkBits())).isEqualTo(1);
+
+        // flow.js tests a chunk before sending it again after a pause
+        restUploaderMockMvc.perform(get("/api/uploader")
+                .param("flowChunkNumber", "2")
+                .param("flowChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowCurrentChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowFilename", FILENAME)
+                .param("flowIdentifier", flowIdentifier)
+                .param("flowRelativePath", FILENAME)
+                .param("flowTotalChunks", String.valueOf(TOTAL_CHUNKS))
+                .param("flowTotalSize", String.valueOf(TOTAL_SIZE)))
+                .andExpect(status().isOk());
+    }
+
+    @Test
+    public void putDuplicateChunk() throws Exception {
+        restUploaderMockMvc.perform(putChunk(1, chunk(1)))
+                .andExpect(status().isOk());
+        restUploaderMockMvc.perform(saveChunk(1))
+                .andExpect(status().isOk())
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"));
+        restUploaderMockMvc.perform(putChunk(1, chunk(1)))
+                .andExpect(status().isOk())
+                .andExpect(header().string(UploaderResource.RECEIVED_CHUNKS_HEADER, "1"));
+
+        assertThat(uploadRepository.findOne(flowIdentifier).getReceivedChunks()).isEqualTo(1);
+    }
+
+    private MockHttpServletRequestBuilder saveChunk(int flowChunkNumber) {
+        byte[] content = chunk(flowChunkNumber);
+        return fileUpload("/api/uploader")
+                .file(new MockMultipartFile("file", "blob", "application/octet-stream", content))
+                .param("flowChunkNumber", String.valueOf(flowChunkNumber))
+                .param("flowChunkSize", String.valueOf(CHUNK_SIZE))
+                .param("flowCurrentChunkSize", String.valueOf(content.length))
+                .param("flowFilename", FILENAME)
+                .param("flowIdentifier", flowIdentifier)
+                .param("flowRelativePath", FILENAME)
+                .param("flowTotalChunks", String.valueOf(TOTAL_CHUNKS))
+                .param("flowTotalSize", String.valueOf(TOTAL_SIZE));
+    }
+
+    private MockHttpServletRequestBuilder putChunk(int flowChunkNumber, byte[] content) {
+        return putChunk(flowChunkNumber, content, FILENAME);
+    }
+
+    private MockHttpServletRequestBuilder putChunk(int flowChunkNumber, byte[] content, String flowFilename) {
+        return put("/api/uploader/{flowIdentifier}/chunks/{flowChunkNumber}", flowIdentifier, flowChunkNumber)
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header("X-Flow-Chunk-Size", CHUNK_SIZE)
+                .header("X-Flow-Filename", flowFilename)
+                .header("X-Flow-Total-Chunks", TOTAL_CHUNKS)
+                .header("X-Flow-Total-Size", TOTAL_SIZE)
+                .content(content);
+    }
+
+    private MockMultipartFile chunkPart(int flowChunkNumber) {
+        return new MockMultipartFile("file", "blob", "application/octet-stream", chunk(flowChunkNumber));
+    }
+
+    private byte[] chunk(int flowChunkNumber) {
+        int offset = (flowChunkNumber - 1) * CHUNK_SIZE;
+        int length = flowChunkNumber == TOTAL_CHUNKS ? data.length - offset : CHUNK_SIZE;
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+}
@@ -0,0 +1,71 @@
+package org.brewman.upload.web.rest.util;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the ByteRangeUtil utility class.
+ *
+ * @see ByteRangeUtil
+ */
+public class ByteRangeUtilTest {
+
+    @Test
+    public void testSingleRanges() {
+        assertThat(ByteRangeUtil.parse("bytes=0-99", 1000).get(0)).containsExactly(0, 99);
+        assertThat(ByteRangeUtil.parse("bytes=900-", 1000).get(0)).containsExactly(900, 999);
+        assertThat(ByteRangeUtil.parse("bytes=-100", 1000).get(0)).containsExactly(900, 999);
+        assertThat(ByteRangeUtil.parse("bytes=-5000", 1000).get(0)).containsExactly(0, 999);
+        assertThat(ByteRangeUtil.parse("bytes=990-2000", 1000).get(0)).containsExactly(990, 999);
+    }
+
+    @Test
+    public void testMultipleRangesAreCoalesced() {
+        List<long[]> ranges = ByteRangeUtil.parse("bytes=0-9, 500-599, 10-19, 550-650", 1000);
+
+        assertThat(ranges).hasSize(2);
+        assertThat(ranges.get(0)).containsExactly(0, 19);
+        assertThat(ranges.get(1)).containsExactly(500, 650);
+    }
+
+    @Test
+    public void testUnsatisfiableRanges() {
+        assertThat(ByteRangeUtil.parse("bytes=1000-", 1000)).isEmpty();
+        assertThat(ByteRangeUtil.parse("bytes=-0", 1000)).isEmpty();
+        assertThat(ByteRangeUtil.parse("bytes=0-0", 0)).isEmpty();
+    }
+
+    @Test
+    public void testInvalidHeadersAreIgnored() {
+        assertThat(ByteRangeUtil.parse(null, 1000)).isNull();
+        assertThat(ByteRangeUtil.parse("items=0-9", 1000)).isNull();
+        assertThat(ByteRangeUtil.parse("bytes=9-0", 1000)).isNull();
+        assertThat(ByteRangeUtil.parse("bytes=a-b", 1000)).isNull();
+        assertThat(ByteRangeUtil.parse("bytes=5", 1000)).isNull();
+
+        StringBuilder tooMany = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= ByteRangeUtil.MAX_RANGES; i++) {
+            tooMany.append(',').append(i * 2).append('-').append(i * 2);
+        }
+        assertThat(ByteRangeUtil.parse(tooMany.toString(), 1000)).isNull();
+    }
+
+    @Test
+    public void testMatchesETag() {
+        assertThat(ByteRangeUtil.matchesETag("\"abc\"", "\"abc\"")).isTrue();
+        assertThat(ByteRangeUtil.matchesETag("\"x\", W/\"abc\"", "\"abc\"")).isTrue();
+        assertThat(ByteRangeUtil.matchesETag("*", "\"abc\"")).isTrue();
+        assertThat(ByteRangeUtil.matchesETag("\"abd\"", "\"abc\"")).isFalse();
+        assertThat(ByteRangeUtil.matchesETag(null, "\"abc\"")).isFalse();
+    }
+
+    @Test
+    public void testContentRange() {
+        assertThat(ByteRangeUtil.contentRange(new long[] { 0, 99 }, 1000)).isEqualTo("bytes 0-99/1000");
+        assertThat(ByteRangeUtil.unsatisfiedRange(1000)).isEqualTo("bytes */1000");
+        assertThat(ByteRangeUtil.length(new long[] { 0, 99 })).isEqualTo(100);
+    }
+}
@@ -0,0 +1,38 @@
+package org.brewman.upload.web.rest.util;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Test class for the CsvUtil utility class.
+ *
+ * @see CsvUtil
+ */
+public class CsvUtilTest {
+
+    @Test
+    public void testPlainFieldsAreLeftAlone() {
+        assertThat(CsvUtil.escape("movie.mkv")).isEqualTo("movie.mkv");
+        assertThat(CsvUtil.escape("")).isEqualTo("");
+    }
+
+    @Test
+    public void testSpecialFieldsAreQuoted() {
+        assertThat(CsvUtil.escape("a,b")).isEqualTo("\"a,b\"");
+        assertThat(CsvUtil.escape("say \"hi\"")).isEqualTo("\"say \"\"hi\"\"\"");
+        assertThat(CsvUtil.escape("two\nlines")).isEqualTo("\"two\nlines\"");
+    }
+
+    @Test
+    public void testWriteRecord() throws Exception {
+        StringWriter out = new StringWriter();
+
+        CsvUtil.writeRecord(out, "id", null, 42, "a,b");
+        CsvUtil.writeRecord(out, "next");
+
+        assertThat(out.toString()).isEqualTo("id,,42,\"a,b\"\r\nnext\r\n");
+    }
+}